@@ -0,0 +1,53 @@
+package keepalive.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * Measures the latency of a repository call with a new connection per call and with the pool of {@link DB}.
+ * Run it with {@code gradle benchmarkDB}, it opens a database of its own in build/benchmark. The node must not
+ * use the same working directory while it runs.
+ */
+public class DBBenchmark {
+
+    private static final String SQL = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = ?";
+    private static final int WARMUP = 200;
+    private static final int CALLS = 2000;
+
+    public static void main(String[] args) throws SQLException {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : CALLS;
+
+        // without the pool first, an idle pooled connection would keep the database open in between
+        run(false, WARMUP);
+        long unpooled = run(false, calls);
+        run(true, WARMUP);
+        long pooled = run(true, calls);
+        DB.close();
+
+        print("new connection per call", unpooled, calls);
+        print("pooled connection", pooled, calls);
+        System.out.println(String.format(Locale.ROOT, "speedup: %.1fx", (double) unpooled / pooled));
+    }
+
+    private static long run(boolean pooled, int calls) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            try (Connection connection = pooled ? DB.getConnection() : DB.connect();
+                 PreparedStatement preparedStatement = connection.prepareStatement(SQL)) {
+                preparedStatement.setString(1, "BLOCK");
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    resultSet.next();
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void print(String name, long nanos, int calls) {
+        System.out.println(String.format(Locale.ROOT, "%-24s %8.1f us/call (%d calls)",
+                name, nanos / 1000.0 / calls, calls));
+    }
+}
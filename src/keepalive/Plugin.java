@@ -21,10 +21,17 @@ package keepalive;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.keys.FreenetURI;
 import freenet.pluginmanager.PluginRespirator;
+import keepalive.model.BlockBuffers;
+import keepalive.model.Site;
+import keepalive.model.SiteStatistic;
+import keepalive.repository.BlockCacheRepository;
 import keepalive.repository.BlockRepository;
 import keepalive.repository.DB;
+import keepalive.repository.SiteRepository;
 import keepalive.service.net.Client;
-import keepalive.service.reinserter.Reinserter;
+import keepalive.service.net.JobScheduler;
+import keepalive.service.net.RequestSlots;
+import keepalive.service.reinserter.ReinserterRunner;
 import keepalive.web.AdminPage;
 import pluginbase.PluginBase;
 
@@ -32,13 +39,20 @@ import java.io.File;
 import java.net.MalformedURLException;
 import java.sql.Connection;
 import java.sql.Statement;
-import java.util.concurrent.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Plugin extends PluginBase {
 
     private static final String version = "0.3.3.11-RW";
 
-    private Thread reinserterRunner;
+    private final Object reinserterLock = new Object();
+    private ReinserterRunner reinserterRunner;
+    private RequestSlots requestSlots;
+    private JobScheduler jobScheduler;
+    private final ConcurrentHashMap<Integer, SiteStatistic> statistics = new ConcurrentHashMap<>();
     private long propSavingTimestamp;
     private HighLevelSimpleClientImpl hlsc;
     private boolean stackTrace = "true".equals(getProp("stackTrace"));
@@ -56,6 +70,75 @@ public class Plugin extends PluginBase {
         try {
             hlsc = (HighLevelSimpleClientImpl) pluginContext.node.clientCore.makeClient((short) 5, false, true);
 
+            // db migration
+            // TODO: should be refactored to some standard way
+            try (Connection connection = DB.getConnection();
+                 Statement statement = connection.createStatement()) {
+                String sql = "CREATE TABLE IF NOT EXISTS Block (" +
+                        "uri VARCHAR(256) PRIMARY KEY, " +
+                        "data VARBINARY(32768) not null, " +
+                        "last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+                statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS Site (" +
+                        "id INT PRIMARY KEY, " +
+                        "uri VARCHAR(1024) not null, " +
+                        "blocks INT DEFAULT -1 not null, " +
+                        "segment INT DEFAULT -1 not null)";
+                statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS SegmentStatistic (" +
+                        "site_id INT not null, " +
+                        "segment_id INT not null, " +
+                        "success INT DEFAULT 0 not null, " +
+                        "failed INT DEFAULT 0 not null, " +
+                        "available BOOLEAN DEFAULT FALSE not null, " +
+                        "PRIMARY KEY (site_id, segment_id), " +
+                        "FOREIGN KEY (site_id) REFERENCES Site(id) ON DELETE CASCADE)";
+                statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS History (" +
+                        "site_id INT not null, " +
+                        "year INT not null, " +
+                        "month INT not null, " +
+                        "persistence INT not null, " +
+                        "PRIMARY KEY (site_id, year, month), " +
+                        "FOREIGN KEY (site_id) REFERENCES Site(id) ON DELETE CASCADE)";
+                statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS BlockCache (" +
+                        "routing_key VARBINARY(32) PRIMARY KEY, " +
+                        "site_id INT not null, " +
+                        "data VARBINARY(32768) not null, " +
+                        "size INT not null, " +
+                        "last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                        "FOREIGN KEY (site_id) REFERENCES Site(id) ON DELETE CASCADE)";
+                statement.executeUpdate(sql);
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS BlockCache_last_access ON BlockCache(last_access)");
+                sql = "CREATE TABLE IF NOT EXISTS ParseResult (" +
+                        "parse_key VARCHAR(1024) PRIMARY KEY, " +
+                        "site_id INT not null, " +
+                        "data BLOB not null, " +
+                        "last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                        "FOREIGN KEY (site_id) REFERENCES Site(id) ON DELETE CASCADE)";
+                statement.executeUpdate(sql);
+            } catch (Exception e) {
+                log(e.getMessage(), e);
+            }
+
+            // move the sites from prop.txt to the db
+            if (getProp("ids") != null) {
+                try {
+                    SiteRepository.getInstance(this).migrateFromProp(getProp("ids"));
+                    for (String id : getProp("ids").split(",")) {
+                        for (String key : new String[]{"uri_", "blocks_", "success_", "success_segments_",
+                                "segment_", "history_"}) {
+                            removeProp(key + id);
+                        }
+                    }
+                    removeProp("ids");
+                    super.saveProp();
+                } catch (Exception e) {
+                    log("Can't move the sites to the db", e);
+                }
+            }
+
             // migrate from 0.2 to 0.3
             if (getProp("version") == null || !getProp("version").substring(0, 3).equals("0.3")) {
                 int[] ids = getIds();
@@ -67,38 +150,40 @@ public class Plugin extends PluginBase {
 
                 // empty all block list
                 for (int aId : ids) {
-                    setProp("blocks_" + aId, "?");
+                    SiteRepository.getInstance(this).updateBlocks(aId, Site.BLOCKS_UNKNOWN);
                 }
 
                 setProp("version", version);
             }
 
-            // db migration
-            // TODO: should be refactored to some standard way
-            try (Connection connection = DB.getConnection();
-                 Statement statement = connection.createStatement()) {
-                String sql = "CREATE TABLE IF NOT EXISTS Block (" +
-                        "uri VARCHAR(256) PRIMARY KEY, " +
-                        "data VARBINARY(32768) not null, " +
-                        "last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
-                statement.executeUpdate(sql);
-            } catch (Exception e) {
-                log(e.getMessage(), e);
-            }
-
             // initial values
             if (getProp("loglevel") == null) setIntProp("loglevel", 1);
-            if (getProp("ids") == null) setProp("ids", "");
             if (getProp("power") == null) setIntProp("power", 6);
+            if (getProp("power_min") == null) setIntProp("power_min", 2);
+            if (getProp("adaptive_power") == null) setIntProp("adaptive_power", 1);
+            if (getProp("parallel_sites") == null) setIntProp("parallel_sites", 2);
             if (getProp("active") == null) setIntProp("active", -1);
             if (getProp("splitfile_tolerance") == null) setIntProp("splitfile_tolerance", 66);
             if (getProp("splitfile_test_size") == null) setIntProp("splitfile_test_size", 18);
+            if (getProp("splitfile_test_error") == null) setIntProp("splitfile_test_error", 5);
+            if (getProp("minimal_fetch_healing") == null) setIntProp("minimal_fetch_healing", 0);
+            if (getProp("block_memory") == null) setIntProp("block_memory", 64);
+            if (getProp("block_cache") == null) setIntProp("block_cache", 0);
             if (getProp("log_links") == null) setIntProp("log_links", 1);
             if (getProp("log_utc") == null) setIntProp("log_utc", 1);
             if (getIntProp("log_utc") == 1) setTimezoneUTC();
             if (getProp("single_url_timeslot") == null) setIntProp("single_url_timeslot", 4);
             if (getProp("stackTrace") == null) setProp("stackTrace", "false");
+            if (getProp("log_max_size") == null) setIntProp("log_max_size", 10);
+            if (getProp("log_max_days") == null) setIntProp("log_max_days", 30);
+            if (getProp("log_retention") == null) setIntProp("log_retention", 3);
             saveProp();
+            updateLogRotation();
+            requestSlots = new RequestSlots(getIntProp("power"));
+            jobScheduler = new JobScheduler(getIntProp("power"));
+            updateRequestSlots();
+            updateBlockMemory();
+            updateBlockCache();
 
             // build page and menu
             addPage(new AdminPage(this, pluginContext.node.clientCore.formPassword));
@@ -116,7 +201,7 @@ public class Plugin extends PluginBase {
         }
     }
 
-    public void startReinserter(final int siteId) {
+    public void startReinserter(int siteId) {
         try {
 
             // stop previous reinserter
@@ -126,50 +211,8 @@ public class Plugin extends PluginBase {
             saveProp();
 
             // start this one
-            synchronized (this) {
-                final Plugin plugin = this;
-                reinserterRunner = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (int id = siteId; ; ) {
-                            if (Thread.currentThread().isInterrupted()) {
-                                return;
-                            }
-
-                            setIntProp("active", id);
-                            saveProp();
-
-                            CountDownLatch latch = new CountDownLatch(1);
-                            Reinserter reinserter = new Reinserter(plugin, id, latch);
-                            reinserter.start();
-                            try {
-                                if (!latch.await(getIntProp("single_url_timeslot"), TimeUnit.HOURS)) {
-                                    reinserter.interrupt();
-                                    log("Terminated reinserter " + id + " by timeout");
-                                }
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                reinserter.interrupt();
-                                return;
-                            }
-
-                            // get next siteId
-                            int[] ids = getIds();
-                            int i = 0;
-                            for (; i < ids.length; i++) {
-                                if (id == ids[i]) {
-                                    break;
-                                }
-                            }
-                            if (i < ids.length - 1) {
-                                id = ids[i + 1];
-                            } else {
-                                id = ids[0];
-                            }
-                        }
-                    }
-                });
-                reinserterRunner.setName("KeepAlive Reinserter Runner");
+            synchronized (reinserterLock) {
+                reinserterRunner = new ReinserterRunner(this, siteId);
                 reinserterRunner.start();
             }
 
@@ -178,13 +221,19 @@ public class Plugin extends PluginBase {
         }
     }
 
-    public synchronized void stopReinserter() {
+    public void stopReinserter() {
         try {
 
-            if (reinserterRunner != null) {
-                reinserterRunner.interrupt();
-                setIntProp("active", -1);
-                saveProp();
+            synchronized (reinserterLock) {
+                if (reinserterRunner != null) {
+                    // the runner only sees the interrupt between two rounds and can't overwrite "active" anymore
+                    synchronized (reinserterRunner) {
+                        reinserterRunner.interrupt();
+                    }
+                    reinserterRunner = null;
+                    setIntProp("active", -1);
+                    saveProp();
+                }
             }
 
         } catch (Exception e) {
@@ -192,20 +241,37 @@ public class Plugin extends PluginBase {
         }
     }
 
+    public boolean isReinserterRunning(int siteId) {
+        synchronized (reinserterLock) {
+            return reinserterRunner != null && reinserterRunner.isRunning(siteId);
+        }
+    }
+
+    public RequestSlots getRequestSlots() {
+        return requestSlots;
+    }
+
+    public void updateRequestSlots() {
+        requestSlots.setBounds(getIntProp("power_min"), getIntProp("power"), getIntProp("adaptive_power") == 1);
+        jobScheduler.setThreads(getIntProp("power"));
+    }
+
+    public JobScheduler getJobScheduler() {
+        return jobScheduler;
+    }
+
+    public void updateBlockMemory() {
+        BlockBuffers.setBudget(getIntProp("block_memory") * 1024L * 1024L);
+    }
+
+    public void updateBlockCache() {
+        BlockCacheRepository.getInstance(this).setMaxSize(getIntProp("block_cache") * 1024L * 1024L);
+    }
+
     public int[] getIds() {
         try {
 
-            if (getProp("ids") == null || getProp("ids").equals("")) {
-                return new int[]{};
-            } else {
-                String[] ids = getProp("ids").split(",");
-                int[] intIds = new int[ids.length];
-                for (int i = 0; i < intIds.length; i++) {
-                    intIds[i] = Integer.parseInt(ids[i]);
-                }
-
-                return intIds;
-            }
+            return SiteRepository.getInstance(this).findIds();
 
         } catch (Exception e) {
             log("Plugin.getIds Exception: " + e.getMessage(), 0);
@@ -216,35 +282,14 @@ public class Plugin extends PluginBase {
     public int[] getSuccessValues(int siteId) {
         try {
 
-            // available blocks
-            int success = 0;
-            int failed = 0;
-            String[] successMap = getProp("success_" + siteId).split(",");
-            if (successMap.length >= 2) {
-                for (int i = 0; i < successMap.length; i += 2) {
-                    success += Integer.parseInt(successMap[i]);
-                    failed += Integer.parseInt(successMap[i + 1]);
-                }
-            }
-
-            // available segments
-            int availableSegments = 0;
-            String successSegments = getProp("success_segments_" + siteId);
-            int lastTriedSegment = getIntProp("segment_" + siteId);
-            if (successSegments != null) {
-                if (lastTriedSegment >= successSegments.length()) {
-                    log("Plugin.getSuccessValues(): List of success_segments too short for siteId " +
-                            siteId + "! " + successSegments.length() + " vs " + lastTriedSegment + 1, 0);
-                }
-
-                for (int i = 0; i <= lastTriedSegment && i < successSegments.length(); i++) {
-                    if (successSegments.charAt(i) == '1') {
-                        availableSegments++;
-                    }
-                }
+            // the statistic of a running reinserter is newer than the saved one
+            SiteStatistic statistic = statistics.get(siteId);
+            Site site = SiteRepository.getInstance(this).findOne(siteId);
+            int lastSegmentId = site != null ? site.getSegment() : -1;
+            if (statistic != null) {
+                return statistic.getSuccessValues(lastSegmentId);
             }
-
-            return new int[]{success, failed, availableSegments};
+            return SiteRepository.getInstance(this).findSuccessValues(siteId, lastSegmentId);
 
         } catch (Exception e) {
             log("Plugin.getSuccessValues Exception: " + e.getMessage(), 0);
@@ -252,11 +297,48 @@ public class Plugin extends PluginBase {
         }
     }
 
+    /**
+     * The values of the sites as loaded by the caller, the saved ones are read in one query.
+     *
+     * @return available blocks, missed blocks and available segments by site id
+     */
+    public Map<Integer, int[]> getSuccessValues(List<Site> sites) {
+        Map<Integer, int[]> savedValues = SiteRepository.getInstance(this).findAllSuccessValues();
+        Map<Integer, int[]> successValues = new HashMap<>();
+        for (Site site : sites) {
+            SiteStatistic statistic = statistics.get(site.getId());
+            int[] values;
+            if (statistic != null) {
+                values = statistic.getSuccessValues(site.getSegment());
+            } else {
+                values = savedValues.get(site.getId());
+            }
+            successValues.put(site.getId(), values != null ? values : new int[]{0, 0, 0});
+        }
+        return successValues;
+    }
+
+    public void registerStatistic(int siteId, SiteStatistic statistic) {
+        statistics.put(siteId, statistic);
+    }
+
+    public void unregisterStatistic(int siteId, SiteStatistic statistic) {
+        statistics.remove(siteId, statistic);
+    }
+
+    public void updateLogRotation() {
+        setLogRotation(getIntProp("log_max_size"), getIntProp("log_max_days"), getIntProp("log_retention"));
+    }
+
     public String getLogFilename(int siteId) {
         return "log" + siteId + ".txt";
     }
 
     public String getBlockListFilename(int siteId) {
+        return "keys" + siteId + ".dat";
+    }
+
+    public String getLegacyBlockListFilename(int siteId) {
         return "keys" + siteId + ".txt";
     }
 
@@ -271,6 +353,10 @@ public class Plugin extends PluginBase {
     @Override
     public void terminate() {
         stopReinserter();
+        if (jobScheduler != null) {
+            jobScheduler.shutdown();
+        }
+        DB.close();
         super.terminate();
         log("plugin terminated", 0);
     }
@@ -279,59 +365,44 @@ public class Plugin extends PluginBase {
         return hlsc;
     }
 
-    public synchronized boolean isDuplicate(String uri) {
-        try {
-
-            for (int i : getIds()) {
-                if (getProp("uri_" + i).equals(uri)) {
-                    return true;
-                }
-            }
-
-        } catch (Exception e) {
-            log("Plugin.isDuplicate Exception: " + e.getMessage(), 2);
-        }
-        return false;
+    public boolean isDuplicate(String uri) {
+        return SiteRepository.getInstance(this).existsUri(uri);
     }
 
     public void removeUri(int id) {
         // stop reinserter
-        if (id == getIntProp("active")) {
-            stopReinserter();
+        synchronized (reinserterLock) {
+            if (reinserterRunner != null) {
+                reinserterRunner.stop(id);
+            }
         }
 
         // remove log and key files
-        File file = new File(getPluginDirectory() + getLogFilename(id));
-        if (file.exists()) {
-            if (!file.delete()) {
-                log("Plugin.removeUri(): remove log files was not successful.", 1);
-            }
-        }
-        file = new File(getPluginDirectory() + getBlockListFilename(id));
-        if (file.exists()) {
-            if (!file.delete()) {
-                log("Plugin.removeUri(): remove key files was not successful.", 1);
+        deleteLog(getLogFilename(id));
+        File file;
+        for (String filename : new String[]{getBlockListFilename(id), getLegacyBlockListFilename(id)}) {
+            file = new File(getPluginDirectory() + filename);
+            if (file.exists()) {
+                if (!file.delete()) {
+                    log("Plugin.removeUri(): remove key files was not successful.", 1);
+                }
             }
         }
 
         // remove top block from db
-        try {
-            BlockRepository.getInstance(this).delete(
-                    Client.normalizeUri(new FreenetURI(getProp("uri_" + id))).toString());
-        } catch (MalformedURLException e) {
-            log("Can't remove top block from db", e);
+        Site site = SiteRepository.getInstance(this).findOne(id);
+        if (site != null) {
+            try {
+                BlockRepository.getInstance(this).delete(
+                        Client.normalizeUri(new FreenetURI(site.getUri())).toString());
+            } catch (MalformedURLException e) {
+                log("Can't remove top block from db", e);
+            }
         }
 
-        // remove items
-        removeProp("uri_" + id);
-        removeProp("blocks_" + id);
-        removeProp("success_" + id);
-        removeProp("success_segments_" + id);
-        removeProp("segment_" + id);
-        removeProp("history_" + id);
-        String ids = ("," + getProp("ids")).replaceAll("," + id + ",", ",");
-        setProp("ids", ids.substring(1));
-        saveProp();
+        // remove site with its statistic and history
+        statistics.remove(id);
+        SiteRepository.getInstance(this).delete(id);
     }
 
     @Override
@@ -19,16 +19,21 @@
 package keepalive.model;
 
 import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucket;
 
+import java.io.IOException;
+
 public class Block {
 
     private int id;
     private int segmentId;
     private FreenetURI uri;
-    private ArrayBucket bucket;
+    private byte[] data; // pooled if it has the size of a block
+    private Bucket spilledData; // instead of data while the memory budget is used up
     private boolean dataBlock;
     private boolean fetchDone; // done but not necessarily successful
+    private boolean fetchRunning; // a fetch has not returned yet, a cancelled one too
     private boolean fetchSuccessful;
     private boolean insertDone; // done but not necessarily successful
     private boolean insertSuccessful;
@@ -53,12 +58,61 @@ public class Block {
         return uri;
     }
 
-    public ArrayBucket getBucket() {
-        return bucket;
+    /**
+     * @return a bucket on the data of the block (not a copy), null if the block has no data
+     */
+    public Bucket getBucket() {
+        if (spilledData != null) {
+            return spilledData;
+        }
+        byte[] data = this.data;
+        return data != null ? new ArrayBucket(data) : null;
+    }
+
+    /**
+     * @return the data of the block, spilled data is read back into memory
+     */
+    public byte[] getData() throws IOException {
+        if (spilledData != null) {
+            setData(BlockBuffers.read(spilledData));
+        }
+        return data;
+    }
+
+    /**
+     * The block owns the data from now on, the data before is given back to the pool.
+     */
+    public void setData(byte[] data) {
+        byte[] oldData = this.data;
+        this.data = data;
+        if (oldData != data) {
+            BlockBuffers.release(oldData);
+        }
+        BlockBuffers.free(spilledData);
+        spilledData = null;
+    }
+
+    /**
+     * @param spilledData as returned by BlockBuffers.spill
+     */
+    public void setSpilledData(Bucket spilledData) {
+        setData(null);
+        this.spilledData = spilledData;
     }
 
-    public void setBucket(ArrayBucket bucket) {
-        this.bucket = bucket;
+    public void free() {
+        setData(null);
+    }
+
+    /**
+     * Frees the data of a block that is given up while a job may still read it, the array is not reused.
+     */
+    public void discard() {
+        byte[] oldData = data;
+        data = null;
+        BlockBuffers.discard(oldData);
+        BlockBuffers.free(spilledData);
+        spilledData = null;
     }
 
     public boolean isDataBlock() {
@@ -73,6 +127,21 @@ public class Block {
         fetchDone = done;
     }
 
+    /**
+     * Waits until the fetch before has returned, so a block is fetched by one fetch at a time.
+     */
+    public synchronized void beginFetch() throws InterruptedException {
+        while (fetchRunning) {
+            wait();
+        }
+        fetchRunning = true;
+    }
+
+    public synchronized void endFetch() {
+        fetchRunning = false;
+        notifyAll();
+    }
+
     boolean isInsertDone() {
         return insertDone;
     }
@@ -0,0 +1,173 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import freenet.keys.CHKBlock;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of block sized arrays for the fetched, healed and inserted blocks of the segments, so a segment in work
+ * reuses the arrays of the segments before. The arrays in use are counted against a memory budget, fetched
+ * blocks that don't fit into it are kept in temp buckets of the node.
+ */
+public final class BlockBuffers {
+
+    private static final int MAX_IDLE = 256; // one segment of the biggest kind, 8 MiB
+
+    private static final ArrayDeque<byte[]> idle = new ArrayDeque<>();
+    private static long budget = Long.MAX_VALUE;
+    private static long bytesInUse;
+    private static long bytesSpilled;
+
+    private BlockBuffers() {
+    }
+
+    /**
+     * @return an array of CHKBlock.DATA_LENGTH bytes, its content is undefined
+     */
+    public static byte[] acquire() {
+        synchronized (idle) {
+            bytesInUse += CHKBlock.DATA_LENGTH;
+            byte[] buffer = idle.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[CHKBlock.DATA_LENGTH];
+    }
+
+    /**
+     * Takes the array back, it must not be used by the caller anymore. Arrays of other sizes are ignored.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != CHKBlock.DATA_LENGTH) {
+            return;
+        }
+        synchronized (idle) {
+            bytesInUse -= CHKBlock.DATA_LENGTH;
+            if (idle.size() < MAX_IDLE) {
+                idle.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Stops counting an array that may still be read by a job, it is not reused. Arrays of other sizes are
+     * ignored.
+     */
+    public static void discard(byte[] buffer) {
+        if (buffer == null || buffer.length != CHKBlock.DATA_LENGTH) {
+            return;
+        }
+        synchronized (idle) {
+            bytesInUse -= CHKBlock.DATA_LENGTH;
+        }
+    }
+
+    /**
+     * Arrays that are needed anyway (for healing) are handed out beyond the budget.
+     */
+    public static void setBudget(long bytes) {
+        synchronized (idle) {
+            budget = bytes;
+        }
+    }
+
+    /**
+     * @return true if data of the given size can be kept in memory
+     */
+    public static boolean hasRoom(long size) {
+        synchronized (idle) {
+            return bytesInUse + size <= budget;
+        }
+    }
+
+    public static long getBytesInUse() {
+        synchronized (idle) {
+            return bytesInUse;
+        }
+    }
+
+    public static long getBytesSpilled() {
+        synchronized (idle) {
+            return bytesSpilled;
+        }
+    }
+
+    /**
+     * @return a copy of the bucket made by the factory, usually on disk
+     */
+    public static Bucket spill(Bucket bucket, BucketFactory bucketFactory) throws IOException {
+        Bucket spilledBucket = bucketFactory.makeBucket(bucket.size());
+        try {
+            BucketTools.copy(bucket, spilledBucket);
+        } catch (IOException e) {
+            spilledBucket.free();
+            throw e;
+        }
+        synchronized (idle) {
+            bytesSpilled += spilledBucket.size();
+        }
+        return spilledBucket;
+    }
+
+    /**
+     * Frees a bucket returned by spill.
+     */
+    public static void free(Bucket spilledBucket) {
+        if (spilledBucket == null) {
+            return;
+        }
+        synchronized (idle) {
+            bytesSpilled -= spilledBucket.size();
+        }
+        spilledBucket.free();
+    }
+
+    /**
+     * @return a copy of the data, in a pooled array if it has the size of a block
+     */
+    public static byte[] copyOf(byte[] data) {
+        byte[] copy = data.length == CHKBlock.DATA_LENGTH ? acquire() : new byte[data.length];
+        System.arraycopy(data, 0, copy, 0, data.length);
+        return copy;
+    }
+
+    /**
+     * @return the content of the bucket, in a pooled array if it has the size of a block
+     */
+    public static byte[] read(Bucket bucket) throws IOException {
+        long size = bucket.size();
+        byte[] data = size == CHKBlock.DATA_LENGTH ? acquire() : new byte[(int) size];
+        try (InputStream in = bucket.getInputStream()) {
+            new DataInputStream(in).readFully(data);
+        } catch (IOException e) {
+            release(data);
+            throw e;
+        }
+        return data;
+    }
+}
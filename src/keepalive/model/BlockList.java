@@ -0,0 +1,84 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Blocks of a site held in memory, grouped by segment so the blocks of one segment can be picked
+ * without scanning the whole site.
+ */
+public class BlockList implements BlockSource {
+
+    private final Block[] blocks; // ordered by segment
+    private final int[] segmentOffsets; // position of the first block of each segment in blocks, followed by the end
+
+    public BlockList(Collection<Block> unorderedBlocks) {
+        int maxSegmentId = -1;
+        for (Block block : unorderedBlocks) {
+            maxSegmentId = Math.max(maxSegmentId, block.getSegmentId());
+        }
+
+        // counting sort by segment id
+        segmentOffsets = new int[maxSegmentId + 2];
+        for (Block block : unorderedBlocks) {
+            if (block.getSegmentId() >= 0) {
+                segmentOffsets[block.getSegmentId() + 1]++;
+            }
+        }
+        for (int i = 1; i < segmentOffsets.length; i++) {
+            segmentOffsets[i] += segmentOffsets[i - 1];
+        }
+
+        blocks = new Block[segmentOffsets[segmentOffsets.length - 1]];
+        int[] positions = Arrays.copyOf(segmentOffsets, segmentOffsets.length - 1);
+        for (Block block : unorderedBlocks) {
+            if (block.getSegmentId() >= 0) {
+                blocks[positions[block.getSegmentId()]++] = block;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return blocks.length;
+    }
+
+    @Override
+    public int segmentCount() {
+        return segmentOffsets.length - 1;
+    }
+
+    @Override
+    public int segmentSize(int segmentId) {
+        if (segmentId < 0 || segmentId >= segmentCount()) {
+            return 0;
+        }
+        return segmentOffsets[segmentId + 1] - segmentOffsets[segmentId];
+    }
+
+    @Override
+    public Block[] getSegment(int segmentId) {
+        if (segmentId < 0 || segmentId >= segmentCount()) {
+            return new Block[0];
+        }
+        return Arrays.copyOfRange(blocks, segmentOffsets[segmentId], segmentOffsets[segmentId + 1]);
+    }
+}
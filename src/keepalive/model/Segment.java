@@ -26,8 +26,6 @@ public class Segment {
     private final int size;
     private Block[] blocks;
     private int dataBlocksCount;
-    private int success = 0;
-    private int failed = 0;
     private boolean persistenceCheckOk = false;
     private boolean healingNotPossible = false;
 
@@ -72,24 +70,17 @@ public class Segment {
     }
 
     public void initInsert() {
-        success = 0;
-        failed = 0;
+        reinserter.updateBlockStatistic(id, 0, 0);
     }
 
     public void regFetchSuccess(double persistenceRate) {
         persistenceCheckOk = true;
-        success = (int) Math.round(persistenceRate * size);
-        failed = size - success;
-        reinserter.updateBlockStatistic(id, success, failed);
+        int success = (int) Math.round(persistenceRate * size);
+        reinserter.updateBlockStatistic(id, success, size - success);
     }
 
     public void regFetchSuccess(boolean isSuccess) {
-        if (isSuccess)
-            success++;
-        else
-            failed++;
-
-        reinserter.updateBlockStatistic(id, success, failed);
+        reinserter.incrementBlockStatistic(id, isSuccess);
     }
 
     public int getId() {
@@ -117,9 +108,7 @@ public class Segment {
         // free blocks (especially buckets)
         if (finished) {
             for (int i = 0; i < size; i++) {
-                if (blocks[i].getBucket() != null) {
-                    blocks[i].getBucket().free();
-                }
+                blocks[i].free();
             }
             blocks = null;
         }
@@ -127,6 +116,21 @@ public class Segment {
         return finished;
     }
 
+    /**
+     * Frees the data of a segment that won't be finished anymore, when the reinserter stops.
+     */
+    public void discard() {
+        if (blocks == null) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (blocks[i] != null) {
+                blocks[i].discard();
+            }
+        }
+        blocks = null;
+    }
+
     public void setHealingNotPossible(boolean notPossible) {
         healingNotPossible = notPossible;
     }
@@ -0,0 +1,56 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+public class Site {
+
+    public static final int BLOCKS_UNKNOWN = -1;
+
+    private final int id;
+    private final String uri;
+    private final int blocks; // BLOCKS_UNKNOWN until the site is parsed
+    private final int segment; // last finished segment
+
+    public Site(int id, String uri, int blocks, int segment) {
+        this.id = id;
+        this.uri = uri;
+        this.blocks = blocks;
+        this.segment = segment;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public int getBlocks() {
+        return blocks;
+    }
+
+    public String getBlocksText() {
+        return blocks == BLOCKS_UNKNOWN ? "?" : String.valueOf(blocks);
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+}
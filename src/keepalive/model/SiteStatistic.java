@@ -0,0 +1,160 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Available and missed blocks per segment and the segments that are available.
+ * Updates are lock-free, the owner persists the changed segments from time to time.
+ */
+public class SiteStatistic {
+
+    private final AtomicIntegerArray blocks; // success and failed count of every segment
+    private final AtomicIntegerArray segments; // 1 if the segment is available
+    private final AtomicIntegerArray dirtySegments; // 1 if the segment changed since the last save
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public SiteStatistic(int segmentCount) {
+        blocks = new AtomicIntegerArray(segmentCount * 2);
+        segments = new AtomicIntegerArray(segmentCount);
+        dirtySegments = new AtomicIntegerArray(segmentCount);
+    }
+
+    /**
+     * @param success         "success,failed" pairs of all segments
+     * @param successSegments '0' or '1' for every segment
+     */
+    public static SiteStatistic parse(String success, String successSegments) {
+        int segmentCount = 0;
+        if (success != null && !success.isEmpty()) {
+            segmentCount = (success.split(",").length + 1) / 2;
+        }
+        if (successSegments != null) {
+            segmentCount = Math.max(segmentCount, successSegments.length());
+        }
+        return parse(success, successSegments, segmentCount);
+    }
+
+    public static SiteStatistic parse(String success, String successSegments, int segmentCount) {
+        SiteStatistic statistic = new SiteStatistic(segmentCount);
+
+        if (success != null && !success.isEmpty()) {
+            String[] values = success.split(",");
+            for (int i = 0; i + 1 < values.length && i < segmentCount * 2; i += 2) {
+                statistic.setBlocks(i / 2, Integer.parseInt(values[i]), Integer.parseInt(values[i + 1]));
+            }
+        }
+
+        if (successSegments != null) {
+            for (int i = 0; i < successSegments.length() && i < segmentCount; i++) {
+                if (successSegments.charAt(i) == '1') {
+                    statistic.setSegmentAvailable(i);
+                }
+            }
+        }
+
+        return statistic;
+    }
+
+    public int segmentCount() {
+        return segments.length();
+    }
+
+    public void setBlocks(int segmentId, int success, int failed) {
+        blocks.set(segmentId * 2, success);
+        blocks.set(segmentId * 2 + 1, failed);
+        markDirty(segmentId);
+    }
+
+    public void addBlock(int segmentId, boolean success) {
+        blocks.incrementAndGet(success ? segmentId * 2 : segmentId * 2 + 1);
+        markDirty(segmentId);
+    }
+
+    public void setSegmentAvailable(int segmentId) {
+        segments.set(segmentId, 1);
+        markDirty(segmentId);
+    }
+
+    public int getSuccess(int segmentId) {
+        return blocks.get(segmentId * 2);
+    }
+
+    public int getFailed(int segmentId) {
+        return blocks.get(segmentId * 2 + 1);
+    }
+
+    public boolean isSegmentAvailable(int segmentId) {
+        return segments.get(segmentId) == 1;
+    }
+
+    /**
+     * Resets the values of all segments from the given one on.
+     */
+    public void reset(int fromSegmentId) {
+        for (int i = Math.max(0, fromSegmentId); i < segments.length(); i++) {
+            blocks.set(i * 2, 0);
+            blocks.set(i * 2 + 1, 0);
+            markDirty(i);
+        }
+    }
+
+    /**
+     * @return available blocks, missed blocks and available segments up to lastSegmentId
+     */
+    public int[] getSuccessValues(int lastSegmentId) {
+        int success = 0;
+        int failed = 0;
+        for (int i = 0; i < segments.length(); i++) {
+            success += blocks.get(i * 2);
+            failed += blocks.get(i * 2 + 1);
+        }
+
+        int availableSegments = 0;
+        for (int i = 0; i <= lastSegmentId && i < segments.length(); i++) {
+            availableSegments += segments.get(i);
+        }
+
+        return new int[]{success, failed, availableSegments};
+    }
+
+    /**
+     * @return the segments that changed since the last call
+     */
+    public List<Integer> takeDirtySegments() {
+        ArrayList<Integer> segmentIds = new ArrayList<>();
+        if (dirty.getAndSet(false)) {
+            for (int i = 0; i < dirtySegments.length(); i++) {
+                if (dirtySegments.getAndSet(i, 0) == 1) {
+                    segmentIds.add(i);
+                }
+            }
+        }
+        return segmentIds;
+    }
+
+    private void markDirty(int segmentId) {
+        dirtySegments.set(segmentId, 1);
+        dirty.set(true);
+    }
+}
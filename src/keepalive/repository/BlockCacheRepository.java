@@ -0,0 +1,218 @@
+package keepalive.repository;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.FreenetURI;
+import keepalive.Plugin;
+
+import java.sql.*;
+import java.util.Arrays;
+
+/**
+ * Payloads of fetched and inserted CHK blocks, so a block that is known doesn't have to be fetched again for
+ * the next reinsertion. The least recently used blocks are removed when the cache is bigger than its size.
+ */
+public class BlockCacheRepository {
+
+    private final Plugin plugin;
+
+    private static BlockCacheRepository instance;
+
+    private static final String SQL_SAVE = "MERGE INTO BlockCache (routing_key, site_id, data, size) KEY (routing_key) VALUES (?, ?, ?, ?)";
+    private static final String SQL_FIND = "SELECT data FROM BlockCache WHERE routing_key = ?";
+    private static final String SQL_TOUCH = "UPDATE BlockCache SET last_access = CURRENT_TIMESTAMP WHERE routing_key = ?";
+    private static final String SQL_SIZE = "SELECT COALESCE(SUM(size), 0) FROM BlockCache";
+    private static final String SQL_FIND_LRU = "SELECT routing_key, size FROM BlockCache ORDER BY last_access";
+    private static final String SQL_DELETE = "DELETE FROM BlockCache WHERE routing_key = ?";
+
+    private static final double TRIM_TARGET = 0.9; // of the max size, so a full cache isn't trimmed on every save
+
+    private volatile long maxSize; // bytes, 0 if the cache is off
+    private long size = -1; // bytes, -1 until it is read from the db
+    private boolean trimRunning;
+    private long savedDuringTrim; // bytes
+
+    private BlockCacheRepository(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public static synchronized BlockCacheRepository getInstance(Plugin plugin) {
+        if (instance == null) {
+            instance = new BlockCacheRepository(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxSize bytes, 0 switches the cache off and empties it
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        if (size < 0 || size > maxSize) {
+            startTrim();
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public void save(byte[] routingKey, int siteId, byte[] data) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE)) {
+            preparedStatement.setBytes(1, routingKey);
+            preparedStatement.setInt(2, siteId);
+            preparedStatement.setBytes(3, data);
+            preparedStatement.setInt(4, data.length);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+            return;
+        }
+
+        synchronized (this) {
+            // too much if the block was cached before, corrected by the next trim
+            if (trimRunning) {
+                savedDuringTrim += data.length;
+            } else {
+                if (size >= 0) {
+                    size += data.length;
+                }
+                if (size < 0 || size > maxSize) {
+                    startTrim();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the payload or null if the block is not cached
+     */
+    public byte[] findOne(byte[] routingKey) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND)) {
+            preparedStatement.setBytes(1, routingKey);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            byte[] data = resultSet.getBytes("data");
+
+            try (PreparedStatement touchStatement = connection.prepareStatement(SQL_TOUCH)) {
+                touchStatement.setBytes(1, routingKey);
+                touchStatement.executeUpdate();
+            }
+            return data;
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Like findOne, but a payload of block size is only returned if it encodes to the key of the block again,
+     * since healing takes it as present. A payload that doesn't is removed.
+     *
+     * @param uri a CHK
+     */
+    public byte[] findBlock(FreenetURI uri) {
+        byte[] routingKey = uri.getRoutingKey();
+        byte[] data = findOne(routingKey);
+        if (data == null || data.length != CHKBlock.DATA_LENGTH) {
+            return data;
+        }
+
+        try {
+            ClientCHKBlock encodedBlock = ClientCHKBlock.encodeSplitfileBlock(
+                    data, uri.getCryptoKey(), uri.getExtra()[1]);
+            if (Arrays.equals(encodedBlock.getClientKey().getRoutingKey(), routingKey)) {
+                return data;
+            }
+        } catch (CHKEncodeException e) {
+            // removed below
+        }
+        plugin.log("Removed a cached block that doesn't match its key: " + uri);
+        delete(routingKey);
+        return null;
+    }
+
+    /**
+     * Removes a block whose payload turned out to be wrong.
+     */
+    public void delete(byte[] routingKey) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_DELETE)) {
+            preparedStatement.setBytes(1, routingKey);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+        synchronized (this) {
+            size = -1; // read again by the next trim
+        }
+    }
+
+    // trims on its own thread, so the fetches that save blocks don't wait for it
+    private synchronized void startTrim() {
+        if (trimRunning) {
+            return;
+        }
+        trimRunning = true;
+        savedDuringTrim = 0;
+        Thread trimThread = new Thread("KeepAlive Block Cache Trim") {
+            @Override
+            public void run() {
+                trim();
+            }
+        };
+        trimThread.setDaemon(true);
+        trimThread.start();
+    }
+
+    // removes the least recently used blocks until the cache fits into TRIM_TARGET of its size
+    private void trim() {
+        long newSize = -1;
+        try (Connection connection = DB.getConnection()) {
+            long currentSize;
+            try (PreparedStatement preparedStatement = connection.prepareStatement(SQL_SIZE)) {
+                ResultSet resultSet = preparedStatement.executeQuery();
+                currentSize = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+
+            long maxSize = this.maxSize;
+            if (currentSize > maxSize) {
+                long targetSize = (long) (maxSize * TRIM_TARGET);
+                connection.setAutoCommit(false);
+                try (PreparedStatement findStatement = connection.prepareStatement(SQL_FIND_LRU);
+                     PreparedStatement deleteStatement = connection.prepareStatement(SQL_DELETE)) {
+                    ResultSet resultSet = findStatement.executeQuery();
+                    while (currentSize > targetSize && resultSet.next()) {
+                        deleteStatement.setBytes(1, resultSet.getBytes("routing_key"));
+                        deleteStatement.addBatch();
+                        currentSize -= resultSet.getInt("size");
+                    }
+                    deleteStatement.executeBatch();
+                }
+                connection.commit();
+            }
+            newSize = currentSize;
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        } finally {
+            synchronized (this) {
+                size = newSize >= 0 ? newSize + savedDuringTrim : -1;
+                trimRunning = false;
+            }
+        }
+    }
+}
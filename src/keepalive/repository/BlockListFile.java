@@ -0,0 +1,290 @@
+package keepalive.repository;
+
+import freenet.keys.FreenetURI;
+import keepalive.model.Block;
+import keepalive.model.BlockList;
+import keepalive.model.BlockSource;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import static java.nio.charset.StandardCharsets.*;
+
+/**
+ * Binary block list of a site.
+ *
+ * <pre>
+ * header:   magic, version, number of blocks, number of segments (int each)
+ * segments: index of the first record of every segment, followed by the number of blocks (int each)
+ * records:  routing key (32), crypto key (32), extra (5), segment id (int), block id (int),
+ *           type (1, 'd' or 'c'), position of the document name in the names section or -1 (int)
+ * names:    document names of the few CHKs that have one (length (int) and UTF-8 bytes)
+ * </pre>
+ * Records are written in segment order, so a segment can be located by the segments section.
+ */
+public final class BlockListFile {
+
+    private static final int MAGIC = 0x4B41424C; // "KABL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ROUTING_KEY_LENGTH = 32;
+    private static final int CRYPTO_KEY_LENGTH = 32;
+    private static final int EXTRA_LENGTH = 5;
+    private static final int RECORD_SIZE = ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH + EXTRA_LENGTH + 4 + 4 + 1 + 4;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private BlockListFile() {
+    }
+
+    public static void save(File file, BlockSource blockList) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        DataOutputStream namesStream = new DataOutputStream(names);
+
+        try (FileOutputStream stream = new FileOutputStream(tmpFile);
+             FileChannel channel = stream.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+            int segmentCount = blockList.segmentCount();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(blockList.size()).putInt(segmentCount);
+            int recordIndex = 0;
+            for (int segmentId = 0; segmentId <= segmentCount; segmentId++) {
+                if (buffer.remaining() < 4) {
+                    flush(channel, buffer);
+                }
+                buffer.putInt(recordIndex);
+                recordIndex += blockList.segmentSize(segmentId);
+            }
+
+            for (int segmentId = 0; segmentId < segmentCount; segmentId++) {
+                for (Block block : blockList.getSegment(segmentId)) {
+                    if (buffer.remaining() < RECORD_SIZE) {
+                        flush(channel, buffer);
+                    }
+
+                    FreenetURI uri = block.getUri();
+                    if (!uri.isCHK()) {
+                        throw new IOException("Not a CHK: " + uri);
+                    }
+                    putKey(buffer, uri.getRoutingKey(), ROUTING_KEY_LENGTH, uri);
+                    putKey(buffer, uri.getCryptoKey(), CRYPTO_KEY_LENGTH, uri);
+                    putKey(buffer, uri.getExtra(), EXTRA_LENGTH, uri);
+                    buffer.putInt(block.getSegmentId());
+                    buffer.putInt(block.getId());
+                    buffer.put((byte) (block.isDataBlock() ? 'd' : 'c'));
+
+                    if (uri.getDocName() != null) {
+                        byte[] name = uri.getDocName().getBytes(UTF_8);
+                        buffer.putInt(namesStream.size());
+                        namesStream.writeInt(name.length);
+                        namesStream.write(name);
+                    } else {
+                        buffer.putInt(-1);
+                    }
+                }
+            }
+            flush(channel, buffer);
+
+            namesStream.flush();
+            channel.write(ByteBuffer.wrap(names.toByteArray()));
+            channel.force(false);
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't replace " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Can't rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the segments section only, the records of a segment are read when it is asked for. The file is open
+     * only while a segment is read, so it can be replaced or deleted in between.
+     */
+    public static BlockSource open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Not a block list: " + file);
+            }
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a block list: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported block list version " + version + ": " + file);
+            }
+            int blockCount = header.getInt();
+            int segmentCount = header.getInt();
+            if (segmentCount < 0 || fileSize < HEADER_SIZE + (segmentCount + 1) * 4L + (long) blockCount * RECORD_SIZE) {
+                throw new IOException("Truncated block list: " + file);
+            }
+
+            ByteBuffer segments = read(channel, HEADER_SIZE, (segmentCount + 1) * 4);
+            int[] segmentOffsets = new int[segmentCount + 1];
+            for (int i = 0; i <= segmentCount; i++) {
+                segmentOffsets[i] = segments.getInt();
+                if (segmentOffsets[i] < (i == 0 ? 0 : segmentOffsets[i - 1])) {
+                    throw new IOException("Block list corrupted at segment " + i + ": " + file);
+                }
+            }
+            if (segmentOffsets[segmentCount] != blockCount) {
+                throw new IOException("Block list corrupted, " + blockCount + " blocks expected: " + file);
+            }
+
+            return new FileBlockSource(file, fileSize, segmentOffsets);
+        }
+    }
+
+    /**
+     * Reads the text format of versions up to 0.3.3.11 (one "uri#segment#id#type" line per block).
+     */
+    public static BlockList loadLegacy(File file) throws IOException {
+        ArrayList<Block> blocks = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), ISO_8859_1))) {
+
+            String values;
+            while ((values = reader.readLine()) != null) {
+                if (values.isEmpty()) {
+                    continue;
+                }
+                String[] aValues = values.split("#");
+                FreenetURI uri = new FreenetURI(aValues[0]);
+                int segmentId = Integer.parseInt(aValues[1]);
+                int blockId = Integer.parseInt(aValues[2]);
+                boolean isDataBlock = aValues[3].equals("d");
+                blocks.add(new Block(uri, segmentId, blockId, isDataBlock));
+            }
+
+        }
+        return new BlockList(blocks);
+    }
+
+    private static void putKey(ByteBuffer buffer, byte[] key, int length, FreenetURI uri) throws IOException {
+        if (key == null || key.length != length) {
+            throw new IOException("Unexpected key length: " + uri);
+        }
+        buffer.put(key);
+    }
+
+    private static String readName(FileChannel channel, long position) throws IOException {
+        int length = read(channel, position, 4).getInt();
+        if (length < 0 || position + 4 + length > channel.size()) {
+            throw new IOException("Block list corrupted at name " + position);
+        }
+        return new String(read(channel, position + 4, length).array(), UTF_8);
+    }
+
+    // the buffer is ready to be read from
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Block list ends at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static class FileBlockSource implements BlockSource {
+
+        private final File file;
+        private final long fileSize;
+        private final int[] segmentOffsets;
+        private final long recordsPosition;
+        private final long namesPosition;
+
+        FileBlockSource(File file, long fileSize, int[] segmentOffsets) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.segmentOffsets = segmentOffsets;
+            recordsPosition = HEADER_SIZE + segmentOffsets.length * 4L;
+            namesPosition = recordsPosition + (long) size() * RECORD_SIZE;
+        }
+
+        @Override
+        public int size() {
+            return segmentOffsets[segmentOffsets.length - 1];
+        }
+
+        @Override
+        public int segmentCount() {
+            return segmentOffsets.length - 1;
+        }
+
+        @Override
+        public int segmentSize(int segmentId) {
+            if (segmentId < 0 || segmentId >= segmentCount()) {
+                return 0;
+            }
+            return segmentOffsets[segmentId + 1] - segmentOffsets[segmentId];
+        }
+
+        @Override
+        public Block[] getSegment(int segmentId) throws IOException {
+            Block[] blocks = new Block[segmentSize(segmentId)];
+            if (blocks.length == 0) {
+                return blocks;
+            }
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                if (channel.size() != fileSize) {
+                    throw new IOException("Block list changed since it was opened: " + file);
+                }
+                ByteBuffer records = read(channel, recordsPosition + (long) segmentOffsets[segmentId] * RECORD_SIZE,
+                        blocks.length * RECORD_SIZE);
+                for (int i = 0; i < blocks.length; i++) {
+                    blocks[i] = readBlock(channel, records, segmentId);
+                }
+            }
+            return blocks;
+        }
+
+        private Block readBlock(FileChannel channel, ByteBuffer records, int segmentId) throws IOException {
+            byte[] routingKey = new byte[ROUTING_KEY_LENGTH];
+            byte[] cryptoKey = new byte[CRYPTO_KEY_LENGTH];
+            byte[] extra = new byte[EXTRA_LENGTH];
+            records.get(routingKey).get(cryptoKey).get(extra);
+            int blockSegmentId = records.getInt();
+            int blockId = records.getInt();
+            boolean isDataBlock = records.get() == 'd';
+            int namePosition = records.getInt();
+
+            String docName = null;
+            if (namePosition != -1) {
+                docName = readName(channel, namesPosition + namePosition);
+            }
+
+            if (blockSegmentId != segmentId) {
+                throw new IOException("Block list corrupted at segment " + segmentId);
+            }
+            FreenetURI uri = new FreenetURI("CHK", docName, routingKey, cryptoKey, extra);
+            return new Block(uri, blockSegmentId, blockId, isDataBlock);
+        }
+    }
+}
@@ -3,16 +3,19 @@ package keepalive.repository;
 import keepalive.Plugin;
 
 import java.sql.*;
+import java.util.Map;
 
 public class BlockRepository {
 
+    public static final int MAX_DATA_SIZE = 32768; // of the data column
+
     private final Plugin plugin;
 
     private static BlockRepository instance;
 
-    private static final String SQL_SAVE = "INSERT INTO Block (uri, data) VALUES (?, ?)";
+    // last_access keeps its value on update and gets the default on insert
+    private static final String SQL_SAVE_OR_UPDATE = "MERGE INTO Block (uri, data) KEY (uri) VALUES (?, ?)";
     private static final String SQL_FIND = "SELECT data FROM Block WHERE uri = ?";
-    private static final String SQL_UPDATE = "UPDATE Block SET data = ? WHERE uri = ?";
     private static final String SQL_DELETE = "DELETE FROM Block WHERE uri = ?;";
     private static final String SQL_LAST_ACCESS_DIFF = "SELECT TIMESTAMPDIFF(MILLISECOND, last_access, CURRENT_TIMESTAMP) FROM Block WHERE uri = ?";
     private static final String SQL_LAST_ACCESS_UPDATE = "UPDATE Block SET last_access = CURRENT_TIMESTAMP WHERE uri = ?";
@@ -30,25 +33,46 @@ public class BlockRepository {
 
     public void saveOrUpdate(String uri, byte[] data) {
         try (Connection connection = DB.getConnection();
-             PreparedStatement findPreparedStatement = connection.prepareStatement(SQL_FIND)) {
-            findPreparedStatement.setString(1, uri);
-            ResultSet resultSet = findPreparedStatement.executeQuery();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE_OR_UPDATE)) {
+            preparedStatement.setString(1, uri);
+            preparedStatement.setBytes(2, data);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + uri, e);
+        }
+    }
 
-            if (resultSet.next()) {
-                try (PreparedStatement updatePreparedStatement = connection.prepareStatement(SQL_UPDATE)) {
-                    updatePreparedStatement.setBytes(1, data);
-                    updatePreparedStatement.setString(2, uri);
-                    updatePreparedStatement.executeUpdate();
-                }
-            } else {
-                try (PreparedStatement savePreparedStatement = connection.prepareStatement(SQL_SAVE)) {
-                    savePreparedStatement.setString(1, uri);
-                    savePreparedStatement.setBytes(2, data);
-                    savePreparedStatement.executeUpdate();
+    /**
+     * Saves or updates all blocks in one transaction. Blocks bigger than {@link #MAX_DATA_SIZE} are skipped, so
+     * they can't roll back the others.
+     *
+     * @param blocks data by uri
+     */
+    public void saveOrUpdateAll(Map<String, byte[]> blocks) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE_OR_UPDATE)) {
+            connection.setAutoCommit(false);
+            int batchSize = 0;
+            for (Map.Entry<String, byte[]> block : blocks.entrySet()) {
+                if (block.getValue().length > MAX_DATA_SIZE) {
+                    plugin.log("Block too big to save (" + block.getValue().length + " bytes): " + block.getKey());
+                    continue;
                 }
+                preparedStatement.setString(1, block.getKey());
+                preparedStatement.setBytes(2, block.getValue());
+                preparedStatement.addBatch();
+                batchSize++;
+            }
+            if (batchSize > 0) {
+                preparedStatement.executeBatch();
             }
+            connection.commit();
         } catch (SQLException e) {
-            plugin.log(e.getMessage(), e);
+            plugin.log(e.getMessage() + " " + blocks.keySet(), e);
         }
     }
 
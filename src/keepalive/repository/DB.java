@@ -1,10 +1,24 @@
 package keepalive.repository;
 
 import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Hands out connections of a small pool. Closing a connection returns it to the pool and closing one of its
+ * prepared statements keeps the statement open for the next caller with the same sql, so the repositories can
+ * go on with try-with-resources per call.
+ */
 public class DB {
 
     private static final String JDBC_DRIVER = "org.h2.Driver";
@@ -12,6 +26,12 @@ public class DB {
             System.getProperty("user.dir") + File.separator + "KeepAlive" + File.separator + "keppalive";
     private static final String USER = "sa";
     private static final String PASS = "";
+    private static final int POOL_SIZE = 4;
+    private static final int STATEMENT_CACHE_SIZE = 32;
+
+    private static final Semaphore permits = new Semaphore(POOL_SIZE, true);
+    private static final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private static boolean closed;
 
     static {
         try {
@@ -21,11 +41,199 @@ public class DB {
         }
     }
 
+    /**
+     * Blocks while all connections of the pool are in use.
+     */
     public static Connection getConnection() {
+        permits.acquireUninterruptibly();
         try {
-            return DriverManager.getConnection(DB_URL, USER, PASS);
+            PooledConnection pooledConnection;
+            synchronized (idle) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                pooledConnection = idle.poll();
+            }
+            if (pooledConnection == null) {
+                pooledConnection = new PooledConnection(connect());
+            }
+            return pooledConnection.lease();
         } catch (SQLException e) {
+            permits.release();
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * A new connection outside of the pool, as every call got one before the pool.
+     */
+    static Connection connect() throws SQLException {
+        return DriverManager.getConnection(DB_URL, USER, PASS);
+    }
+
+    /**
+     * Closes the idle connections, connections in use are closed when they are given back.
+     */
+    public static void close() {
+        synchronized (idle) {
+            closed = true;
+            for (PooledConnection pooledConnection : idle) {
+                pooledConnection.closePhysical();
+            }
+            idle.clear();
+        }
+    }
+
+    private static void giveBack(PooledConnection pooledConnection) {
+        try {
+            synchronized (idle) {
+                if (!closed && pooledConnection.reset()) {
+                    idle.push(pooledConnection);
+                } else {
+                    pooledConnection.closePhysical();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class PooledConnection {
+
+        private final Connection connection;
+        private final LinkedHashMap<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > STATEMENT_CACHE_SIZE) {
+                            closeQuietly(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        // a new handle for every lease, so a handle that was closed twice can't give the connection back again
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(DB.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new ConnectionHandler(this));
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return (PreparedStatement) Proxy.newProxyInstance(DB.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new StatementHandler(statement));
+        }
+
+        // leaves the connection as a fresh one would be, false if it can't be used anymore
+        boolean reset() {
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            closeQuietly(connection);
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                // already unusable
+            }
+        }
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+
+        private final PooledConnection pooledConnection;
+        private boolean released;
+
+        ConnectionHandler(PooledConnection pooledConnection) {
+            this.pooledConnection = pooledConnection;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        giveBack(pooledConnection);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pooledConnection.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooledConnection.connection;
+            }
+
+            if (released) {
+                throw new SQLException("Connection is closed");
+            }
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                return pooledConnection.prepare((String) args[0]);
+            }
+            return DB.invoke(pooledConnection.connection, method, args);
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+
+        private final PreparedStatement statement;
+
+        StatementHandler(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    // keep it prepared for the next caller
+                    statement.clearBatch();
+                    statement.clearParameters();
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            return DB.invoke(statement, method, args);
+        }
+    }
 }
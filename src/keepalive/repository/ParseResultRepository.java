@@ -0,0 +1,99 @@
+package keepalive.repository;
+
+import keepalive.Plugin;
+
+import java.sql.*;
+
+/**
+ * Results of parsing manifests and splitfile metadata, keyed by the keys of their content. A new edition of a
+ * site registers the parts that are the same as in the edition before from here instead of fetching them.
+ */
+public class ParseResultRepository {
+
+    private final Plugin plugin;
+
+    private static ParseResultRepository instance;
+
+    private static final String SQL_SAVE = "MERGE INTO ParseResult (parse_key, site_id, data, last_access) KEY (parse_key) VALUES (?, ?, ?, CURRENT_TIMESTAMP)";
+    private static final String SQL_EXISTS = "SELECT 1 FROM ParseResult WHERE parse_key = ?";
+    private static final String SQL_FIND = "SELECT data FROM ParseResult WHERE parse_key = ?";
+    private static final String SQL_TOUCH = "UPDATE ParseResult SET site_id = ?, last_access = CURRENT_TIMESTAMP WHERE parse_key = ?";
+    private static final String SQL_DELETE_UNUSED = "DELETE FROM ParseResult WHERE site_id = ? AND last_access < ?";
+
+    private ParseResultRepository(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public static synchronized ParseResultRepository getInstance(Plugin plugin) {
+        if (instance == null) {
+            instance = new ParseResultRepository(plugin);
+        }
+        return instance;
+    }
+
+    public void save(String key, int siteId, byte[] data) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE)) {
+            preparedStatement.setString(1, key);
+            preparedStatement.setInt(2, siteId);
+            preparedStatement.setBytes(3, data);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + key, e);
+        }
+    }
+
+    public boolean exists(String key) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_EXISTS)) {
+            preparedStatement.setString(1, key);
+            return preparedStatement.executeQuery().next();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + key, e);
+        }
+
+        return false;
+    }
+
+    /**
+     * The result is marked as used by the site.
+     *
+     * @return the result or null if the content was not parsed before
+     */
+    public byte[] findOne(String key, int siteId) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND)) {
+            preparedStatement.setString(1, key);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            byte[] data = resultSet.getBytes("data");
+
+            try (PreparedStatement touchStatement = connection.prepareStatement(SQL_TOUCH)) {
+                touchStatement.setInt(1, siteId);
+                touchStatement.setString(2, key);
+                touchStatement.executeUpdate();
+            }
+            return data;
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + key, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Deletes the results of the site that were not used since the given time.
+     */
+    public void deleteUnused(int siteId, long since) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_DELETE_UNUSED)) {
+            preparedStatement.setInt(1, siteId);
+            preparedStatement.setTimestamp(2, new Timestamp(since));
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+}
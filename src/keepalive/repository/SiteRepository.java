@@ -0,0 +1,417 @@
+package keepalive.repository;
+
+import keepalive.Plugin;
+import keepalive.model.Site;
+import keepalive.model.SiteStatistic;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SiteRepository {
+
+    private final Plugin plugin;
+
+    private static SiteRepository instance;
+
+    private static final String SQL_FIND_ALL = "SELECT id, uri, blocks, segment FROM Site ORDER BY id";
+    private static final String SQL_FIND = "SELECT id, uri, blocks, segment FROM Site WHERE id = ?";
+    private static final String SQL_FIND_IDS = "SELECT id FROM Site ORDER BY id";
+    private static final String SQL_COUNT_URI = "SELECT COUNT(*) FROM Site WHERE uri = ?";
+    private static final String SQL_SAVE = "MERGE INTO Site (id, uri, blocks, segment) KEY (id) VALUES (?, ?, ?, ?)";
+    private static final String SQL_NEXT_ID = "SELECT COALESCE(MAX(id), -1) + 1 FROM Site";
+    private static final String SQL_UPDATE_URI = "UPDATE Site SET uri = ? WHERE id = ?";
+    private static final String SQL_UPDATE_BLOCKS = "UPDATE Site SET blocks = ? WHERE id = ?";
+    private static final String SQL_UPDATE_SEGMENT = "UPDATE Site SET segment = ? WHERE id = ?";
+    private static final String SQL_DELETE = "DELETE FROM Site WHERE id = ?";
+
+    private static final String SQL_FIND_STATISTIC =
+            "SELECT segment_id, success, failed, available FROM SegmentStatistic WHERE site_id = ? AND segment_id < ?";
+    private static final String SQL_SUM_STATISTIC = "SELECT COALESCE(SUM(success), 0), COALESCE(SUM(failed), 0), " +
+            "COALESCE(SUM(CASE WHEN available AND segment_id <= ? THEN 1 ELSE 0 END), 0) " +
+            "FROM SegmentStatistic WHERE site_id = ?";
+    private static final String SQL_SUM_ALL_STATISTICS = "SELECT st.site_id, SUM(st.success), SUM(st.failed), " +
+            "SUM(CASE WHEN st.available AND st.segment_id <= s.segment THEN 1 ELSE 0 END) " +
+            "FROM SegmentStatistic st JOIN Site s ON s.id = st.site_id GROUP BY st.site_id";
+    private static final String SQL_SAVE_STATISTIC = "MERGE INTO SegmentStatistic " +
+            "(site_id, segment_id, success, failed, available) KEY (site_id, segment_id) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_DELETE_STATISTIC = "DELETE FROM SegmentStatistic WHERE site_id = ?";
+
+    private static final String SQL_FIND_HISTORY =
+            "SELECT year, month, persistence FROM History WHERE site_id = ? ORDER BY year, month";
+    private static final String SQL_FIND_ALL_HISTORIES =
+            "SELECT site_id, year, month, persistence FROM History ORDER BY site_id, year, month";
+    private static final String SQL_FIND_HISTORY_MONTH =
+            "SELECT persistence FROM History WHERE site_id = ? AND year = ? AND month = ?";
+    private static final String SQL_SAVE_HISTORY =
+            "MERGE INTO History (site_id, year, month, persistence) KEY (site_id, year, month) VALUES (?, ?, ?, ?)";
+    private static final String SQL_DELETE_HISTORY = "DELETE FROM History WHERE site_id = ?";
+
+    private SiteRepository(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public static synchronized SiteRepository getInstance(Plugin plugin) {
+        if (instance == null) {
+            instance = new SiteRepository(plugin);
+        }
+        return instance;
+    }
+
+    public List<Site> findAll() {
+        List<Site> sites = new ArrayList<>();
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND_ALL)) {
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                sites.add(toSite(resultSet));
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+
+        return sites;
+    }
+
+    public Site findOne(int id) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND)) {
+            preparedStatement.setInt(1, id);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()) {
+                return toSite(resultSet);
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + id, e);
+        }
+
+        return null;
+    }
+
+    public int[] findIds() {
+        List<Integer> ids = new ArrayList<>();
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND_IDS)) {
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                ids.add(resultSet.getInt(1));
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+
+        int[] intIds = new int[ids.size()];
+        for (int i = 0; i < intIds.length; i++) {
+            intIds[i] = ids.get(i);
+        }
+        return intIds;
+    }
+
+    public boolean existsUri(String uri) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_COUNT_URI)) {
+            preparedStatement.setString(1, uri);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            return resultSet.next() && resultSet.getInt(1) > 0;
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + uri, e);
+        }
+
+        return false;
+    }
+
+    /**
+     * @return id of the new site or -1 if it couldn't be saved
+     */
+    public synchronized int save(String uri) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement nextIdPreparedStatement = connection.prepareStatement(SQL_NEXT_ID)) {
+            ResultSet resultSet = nextIdPreparedStatement.executeQuery();
+            resultSet.next();
+            int id = resultSet.getInt(1);
+            save(connection, new Site(id, uri, Site.BLOCKS_UNKNOWN, -1));
+            return id;
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + uri, e);
+        }
+
+        return -1;
+    }
+
+    public void updateUri(int id, String uri) {
+        update(SQL_UPDATE_URI, id, uri);
+    }
+
+    public void updateBlocks(int id, int blocks) {
+        update(SQL_UPDATE_BLOCKS, id, blocks);
+    }
+
+    public void updateSegment(int id, int segment) {
+        update(SQL_UPDATE_SEGMENT, id, segment);
+    }
+
+    // statistic and history are removed by the foreign keys
+    public void delete(int id) {
+        update(SQL_DELETE, id);
+    }
+
+    /**
+     * Loads the statistic of the first segmentCount segments; segments without a row have no results yet.
+     */
+    public SiteStatistic findStatistic(int siteId, int segmentCount) {
+        SiteStatistic statistic = new SiteStatistic(segmentCount);
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND_STATISTIC)) {
+            preparedStatement.setInt(1, siteId);
+            preparedStatement.setInt(2, segmentCount);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                int segmentId = resultSet.getInt("segment_id");
+                statistic.setBlocks(segmentId, resultSet.getInt("success"), resultSet.getInt("failed"));
+                if (resultSet.getBoolean("available")) {
+                    statistic.setSegmentAvailable(segmentId);
+                }
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + siteId, e);
+        }
+
+        statistic.takeDirtySegments();
+        return statistic;
+    }
+
+    /**
+     * @return available blocks, missed blocks and available segments up to lastSegmentId
+     */
+    public int[] findSuccessValues(int siteId, int lastSegmentId) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SUM_STATISTIC)) {
+            preparedStatement.setInt(1, lastSegmentId);
+            preparedStatement.setInt(2, siteId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()) {
+                return new int[]{resultSet.getInt(1), resultSet.getInt(2), resultSet.getInt(3)};
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + siteId, e);
+        }
+
+        return new int[]{0, 0, 0};
+    }
+
+    /**
+     * The values of all sites in one query, available segments are counted up to the saved segment of the site.
+     *
+     * @return available blocks, missed blocks and available segments by site id, sites without statistic are missing
+     */
+    public Map<Integer, int[]> findAllSuccessValues() {
+        Map<Integer, int[]> successValues = new HashMap<>();
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SUM_ALL_STATISTICS)) {
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                successValues.put(resultSet.getInt(1),
+                        new int[]{resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4)});
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+
+        return successValues;
+    }
+
+    /**
+     * Writes the segments that changed since the last save.
+     */
+    public void saveStatistic(int siteId, SiteStatistic statistic) {
+        List<Integer> segmentIds = statistic.takeDirtySegments();
+        if (segmentIds.isEmpty()) {
+            return;
+        }
+
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE_STATISTIC)) {
+            connection.setAutoCommit(false);
+            for (int segmentId : segmentIds) {
+                preparedStatement.setInt(1, siteId);
+                preparedStatement.setInt(2, segmentId);
+                preparedStatement.setInt(3, statistic.getSuccess(segmentId));
+                preparedStatement.setInt(4, statistic.getFailed(segmentId));
+                preparedStatement.setBoolean(5, statistic.isSegmentAvailable(segmentId));
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + siteId, e);
+        }
+    }
+
+    public void deleteStatistic(int siteId) {
+        update(SQL_DELETE_STATISTIC, siteId);
+    }
+
+    /**
+     * @return history in the format "MM.yyyy-persistence,..." or null if there is none
+     */
+    public String findHistory(int siteId) {
+        StringBuilder history = new StringBuilder();
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND_HISTORY)) {
+            preparedStatement.setInt(1, siteId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                if (history.length() > 0) {
+                    history.append(",");
+                }
+                history.append(String.format("%02d.%d-%d",
+                        resultSet.getInt("month"), resultSet.getInt("year"), resultSet.getInt("persistence")));
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + siteId, e);
+        }
+
+        return history.length() > 0 ? history.toString() : null;
+    }
+
+    /**
+     * @return the history of every site that has one, by site id, in the format of {@link #findHistory(int)}
+     */
+    public Map<Integer, String> findAllHistories() {
+        Map<Integer, StringBuilder> histories = new HashMap<>();
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND_ALL_HISTORIES)) {
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                StringBuilder history = histories.get(resultSet.getInt("site_id"));
+                if (history == null) {
+                    history = new StringBuilder();
+                    histories.put(resultSet.getInt("site_id"), history);
+                } else {
+                    history.append(",");
+                }
+                history.append(String.format("%02d.%d-%d",
+                        resultSet.getInt("month"), resultSet.getInt("year"), resultSet.getInt("persistence")));
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+
+        Map<Integer, String> result = new HashMap<>();
+        for (Map.Entry<Integer, StringBuilder> history : histories.entrySet()) {
+            result.put(history.getKey(), history.getValue().toString());
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the lowest persistence of the month.
+     */
+    public synchronized void saveHistory(int siteId, int year, int month, int persistence) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement findPreparedStatement = connection.prepareStatement(SQL_FIND_HISTORY_MONTH);
+             PreparedStatement savePreparedStatement = connection.prepareStatement(SQL_SAVE_HISTORY)) {
+            findPreparedStatement.setInt(1, siteId);
+            findPreparedStatement.setInt(2, year);
+            findPreparedStatement.setInt(3, month);
+            ResultSet resultSet = findPreparedStatement.executeQuery();
+            if (resultSet.next()) {
+                persistence = Math.min(persistence, resultSet.getInt(1));
+            }
+
+            savePreparedStatement.setInt(1, siteId);
+            savePreparedStatement.setInt(2, year);
+            savePreparedStatement.setInt(3, month);
+            savePreparedStatement.setInt(4, persistence);
+            savePreparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + siteId, e);
+        }
+    }
+
+    public void deleteHistory(int siteId) {
+        update(SQL_DELETE_HISTORY, siteId);
+    }
+
+    /**
+     * Moves the per-site properties of prop.txt (versions up to 0.3.3.11) into the database.
+     */
+    public void migrateFromProp(String ids) throws Exception {
+        try (Connection connection = DB.getConnection()) {
+            connection.setAutoCommit(false);
+            for (String id : ids.split(",")) {
+                if (id.isEmpty()) {
+                    continue;
+                }
+                int siteId = Integer.parseInt(id);
+
+                String blocks = plugin.getProp("blocks_" + siteId);
+                String segment = plugin.getProp("segment_" + siteId);
+                save(connection, new Site(siteId, plugin.getProp("uri_" + siteId),
+                        blocks == null || blocks.equals("?") ? Site.BLOCKS_UNKNOWN : Integer.parseInt(blocks),
+                        segment == null || segment.isEmpty() ? -1 : Integer.parseInt(segment)));
+
+                SiteStatistic statistic = SiteStatistic.parse(
+                        plugin.getProp("success_" + siteId), plugin.getProp("success_segments_" + siteId));
+                try (PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE_STATISTIC)) {
+                    for (int segmentId : statistic.takeDirtySegments()) {
+                        preparedStatement.setInt(1, siteId);
+                        preparedStatement.setInt(2, segmentId);
+                        preparedStatement.setInt(3, statistic.getSuccess(segmentId));
+                        preparedStatement.setInt(4, statistic.getFailed(segmentId));
+                        preparedStatement.setBoolean(5, statistic.isSegmentAvailable(segmentId));
+                        preparedStatement.addBatch();
+                    }
+                    preparedStatement.executeBatch();
+                }
+
+                String history = plugin.getProp("history_" + siteId);
+                if (history != null && !history.isEmpty()) {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE_HISTORY)) {
+                        for (String entry : history.split(",")) {
+                            String[] monthAndPersistence = entry.split("-"); // MM.yyyy-persistence
+                            String[] monthAndYear = monthAndPersistence[0].split("\\.");
+                            preparedStatement.setInt(1, siteId);
+                            preparedStatement.setInt(2, Integer.parseInt(monthAndYear[1]));
+                            preparedStatement.setInt(3, Integer.parseInt(monthAndYear[0]));
+                            preparedStatement.setInt(4, Integer.parseInt(monthAndPersistence[1]));
+                            preparedStatement.addBatch();
+                        }
+                        preparedStatement.executeBatch();
+                    }
+                }
+            }
+            connection.commit();
+        }
+    }
+
+    private void save(Connection connection, Site site) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SQL_SAVE)) {
+            preparedStatement.setInt(1, site.getId());
+            preparedStatement.setString(2, site.getUri());
+            preparedStatement.setInt(3, site.getBlocks());
+            preparedStatement.setInt(4, site.getSegment());
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    private void update(String sql, int id, Object... values) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < values.length; i++) {
+                preparedStatement.setObject(i + 1, values[i]);
+            }
+            preparedStatement.setInt(values.length + 1, id);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + id, e);
+        }
+    }
+
+    private Site toSite(ResultSet resultSet) throws SQLException {
+        return new Site(resultSet.getInt("id"), resultSet.getString("uri"),
+                resultSet.getInt("blocks"), resultSet.getInt("segment"));
+    }
+}
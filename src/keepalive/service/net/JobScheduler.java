@@ -0,0 +1,215 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Plugin-wide worker threads for the fetch and insert jobs of all reinserters. Every site has its own queue and
+ * the workers take the jobs round-robin from the sites, so a site with a big segment doesn't hold back the
+ * others. The threads live as long as the plugin, the number follows the power setting.
+ */
+public class JobScheduler {
+
+    private final LinkedHashMap<Integer, ArrayDeque<FutureTask<?>>> queues = new LinkedHashMap<>(); // in turn order
+    private int threads;
+    private int targetThreads;
+    private int nextWorkerId;
+    private boolean shutdown;
+
+    public JobScheduler(int threads) {
+        setThreads(threads);
+    }
+
+    public synchronized void setThreads(int newThreads) {
+        targetThreads = Math.max(1, newThreads);
+        while (threads < targetThreads && !shutdown) {
+            Thread worker = new Thread(new Worker(), "KeepAlive Worker " + nextWorkerId++);
+            worker.setDaemon(true);
+            worker.start();
+            threads++;
+        }
+        notifyAll(); // surplus workers leave
+    }
+
+    /**
+     * Stops the workers, running jobs are interrupted by the reinserters that own them.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (ArrayDeque<FutureTask<?>> queue : queues.values()) {
+            for (FutureTask<?> task : queue) {
+                task.cancel(false);
+            }
+        }
+        queues.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return a new group of jobs for the site, the jobs of all groups of a site share its turn
+     */
+    public JobGroup newGroup(int siteId) {
+        return new JobGroup(siteId);
+    }
+
+    private synchronized void enqueue(int siteId, FutureTask<?> task) {
+        if (shutdown) {
+            task.cancel(false);
+            return;
+        }
+        ArrayDeque<FutureTask<?>> queue = queues.get(siteId);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(siteId, queue);
+        }
+        queue.add(task);
+        notify();
+    }
+
+    private synchronized void remove(int siteId, FutureTask<?> task) {
+        ArrayDeque<FutureTask<?>> queue = queues.get(siteId);
+        if (queue != null && queue.remove(task) && queue.isEmpty()) {
+            queues.remove(siteId);
+        }
+    }
+
+    // next job of the site whose turn it is, null if this worker is not needed anymore
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            if (shutdown || threads > targetThreads) {
+                threads--;
+                return null;
+            }
+
+            Iterator<Integer> iterator = queues.keySet().iterator();
+            if (iterator.hasNext()) {
+                int siteId = iterator.next();
+                ArrayDeque<FutureTask<?>> queue = queues.remove(siteId);
+                FutureTask<?> task = queue.poll();
+                if (!queue.isEmpty()) {
+                    queues.put(siteId, queue); // back to the end of the turn order
+                }
+                if (!task.isDone()) {
+                    return new Job(siteId, task);
+                }
+            } else {
+                wait();
+            }
+        }
+    }
+
+    private static class Job {
+
+        final int siteId;
+        final FutureTask<?> task;
+
+        Job(int siteId, FutureTask<?> task) {
+            this.siteId = siteId;
+            this.task = task;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                Job job;
+                while ((job = take()) != null) {
+                    Thread.interrupted(); // an interrupt meant for the previous job
+                    job.task.run();
+                }
+            } catch (InterruptedException e) {
+                synchronized (JobScheduler.this) {
+                    threads--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Jobs of one site that are cancelled together. Can be used as executor of a CompletionService.
+     */
+    public class JobGroup implements Executor {
+
+        private final int siteId;
+        private final HashSet<FutureTask<?>> tasks = new HashSet<>();
+
+        private JobGroup(int siteId) {
+            this.siteId = siteId;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            FutureTask<?> task = command instanceof FutureTask
+                    ? (FutureTask<?>) command
+                    : new FutureTask<Void>(command, null);
+            add(task);
+        }
+
+        public Future<?> submit(Runnable job) {
+            FutureTask<Void> task = new FutureTask<>(job, null);
+            add(task);
+            return task;
+        }
+
+        public <T> Future<T> submit(Callable<T> job) {
+            FutureTask<T> task = new FutureTask<>(job);
+            add(task);
+            return task;
+        }
+
+        /**
+         * Removes the waiting jobs and interrupts the running ones.
+         */
+        public void cancel() {
+            FutureTask<?>[] cancelledTasks;
+            synchronized (tasks) {
+                cancelledTasks = tasks.toArray(new FutureTask<?>[tasks.size()]);
+                tasks.clear();
+            }
+            for (FutureTask<?> task : cancelledTasks) {
+                task.cancel(true);
+                remove(siteId, task);
+            }
+        }
+
+        private void add(FutureTask<?> task) {
+            synchronized (tasks) {
+                // forget finished jobs, so a long-living group doesn't keep them
+                Iterator<FutureTask<?>> iterator = tasks.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().isDone()) {
+                        iterator.remove();
+                    }
+                }
+                tasks.add(task);
+            }
+            enqueue(siteId, task);
+        }
+    }
+}
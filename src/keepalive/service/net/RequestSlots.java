@@ -0,0 +1,188 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Global budget of fetch and insert requests shared by all running reinserters.
+ * <p>
+ * In adaptive mode the limit follows the node: after every round of "limit" finished requests it grows by one
+ * if the slots were used up and the requests were as fast as usual, and it shrinks by a quarter if a request was
+ * rejected because of overload or the latency doubled compared to the best seen recently. Fetches and inserts
+ * are compared with their own latency, because inserts take much longer. Only requests that succeeded on the
+ * network are timed, failures and local store hits are answered too fast to be compared.
+ */
+public class RequestSlots {
+
+    public enum Type {FETCH, INSERT}
+
+    private static final double LATENCY_WEIGHT = 0.1; // of a new sample in the smoothed latency
+    private static final double BASELINE_DRIFT = 1.02; // per round, so the baseline can follow a slower network
+    private static final double CONGESTION_FACTOR = 2.0;
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final ResizableSemaphore semaphore = new ResizableSemaphore();
+    private int limit;
+    private int minLimit;
+    private int maxLimit;
+    private boolean adaptive;
+
+    // current round
+    private int samples;
+    private boolean overloaded;
+    private boolean saturated;
+    private final double[] latency = new double[Type.values().length]; // smoothed, ms
+    private final double[] baseline = new double[Type.values().length]; // lowest smoothed latency, ms
+
+    public RequestSlots(int limit) {
+        setBounds(limit, limit, false);
+    }
+
+    /**
+     * @return start time of the request, to be passed to release
+     */
+    public long acquire() throws InterruptedException {
+        semaphore.acquire();
+        synchronized (this) {
+            if (semaphore.availablePermits() == 0) {
+                saturated = true;
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Releases a request that was not finished, so it says nothing about the node.
+     */
+    public void release() {
+        semaphore.release();
+    }
+
+    /**
+     * Releases a request that succeeded on the network, its latency is a sample of the node's speed. Requests
+     * that were answered from the local store must not be passed here, they are much faster.
+     *
+     * @param startTime as returned by acquire
+     */
+    public void release(long startTime, Type type) {
+        semaphore.release();
+        if (adaptive) {
+            addSample(type, System.currentTimeMillis() - startTime, false);
+        }
+    }
+
+    /**
+     * Releases a request that failed. Failures are often answered at once (recently failed, failure table), so
+     * their latency says nothing, but an overload counts.
+     *
+     * @param overloaded true if the request was rejected because the network or the node is overloaded
+     */
+    public void releaseFailed(boolean overloaded) {
+        semaphore.release();
+        if (adaptive) {
+            addSample(null, 0, overloaded);
+        }
+    }
+
+    /**
+     * A fixed limit of maxLimit slots or, if adaptive, a limit that is adjusted between the bounds.
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit, boolean adaptive) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+        this.adaptive = adaptive;
+        if (!adaptive || limit == 0) {
+            setLimit(this.maxLimit);
+        } else {
+            setLimit(Math.max(this.minLimit, Math.min(limit, this.maxLimit)));
+        }
+        startRound();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInUse() {
+        return Math.max(0, limit - semaphore.availablePermits());
+    }
+
+    public synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    // type is null for a request without latency
+    private synchronized void addSample(Type type, long sampleLatency, boolean sampleOverloaded) {
+        if (type != null) {
+            int i = type.ordinal();
+            latency[i] = latency[i] == 0 ? sampleLatency : latency[i] + LATENCY_WEIGHT * (sampleLatency - latency[i]);
+            if (baseline[i] == 0 || latency[i] < baseline[i]) {
+                baseline[i] = latency[i];
+            }
+        }
+        overloaded |= sampleOverloaded;
+
+        if (++samples < limit) {
+            return;
+        }
+
+        // end of round
+        boolean congested = overloaded;
+        for (int j = 0; j < latency.length; j++) {
+            congested |= baseline[j] > 0 && latency[j] > baseline[j] * CONGESTION_FACTOR;
+            baseline[j] *= BASELINE_DRIFT;
+        }
+        if (congested) {
+            setLimit(Math.max(minLimit, (int) (limit * DECREASE_FACTOR)));
+        } else if (saturated) {
+            setLimit(Math.min(maxLimit, limit + 1));
+        }
+        startRound();
+    }
+
+    private void startRound() {
+        samples = 0;
+        overloaded = false;
+        saturated = false;
+    }
+
+    private void setLimit(int newLimit) {
+        if (newLimit > limit) {
+            semaphore.release(newLimit - limit);
+        } else if (newLimit < limit) {
+            semaphore.reducePermits(limit - newLimit);
+        }
+        limit = newLimit;
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore() {
+            super(0, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -21,9 +21,9 @@ package keepalive.service.net;
 import freenet.client.FetchException;
 import freenet.client.FetchResult;
 import freenet.keys.FreenetURI;
-import freenet.support.io.ArrayBucket;
 import keepalive.service.reinserter.Reinserter;
 import keepalive.model.Block;
+import keepalive.model.BlockBuffers;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
@@ -31,6 +31,7 @@ import java.util.concurrent.Callable;
 public class SingleFetch extends SingleJob implements Callable<Boolean> {
 
     private final boolean persistenceCheck;
+    private boolean cancelled;
 
     public SingleFetch(Reinserter reinserter, Block block, boolean persistenceCheck) {
         super(reinserter, "fetch", block);
@@ -38,11 +39,25 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
         this.persistenceCheck = persistenceCheck;
     }
 
+    /**
+     * The result of the fetch is ignored from now on, a running fetch of the node is not stopped by an
+     * interrupt. When this returns the fetch has not touched the block or won't touch it anymore.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+
+    private synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
     @Override
     public Boolean call() {
-        Thread.currentThread().setName("KeepAlive SingleFetch");
         FetchResult fetchResult = null;
         boolean fetchSuccessful = false;
+        boolean fetchBegun = false;
+        boolean ignored = true; // until the result is taken
+        byte[] cacheData = null;
 
         try {
 
@@ -50,10 +65,21 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
             HLSCIgnoreStore hlscIgnoreStore = HLSCIgnoreStore.getInstance(plugin.getFreenetClient());
 
             FreenetURI fetchUri = getUri();
-            block.setFetchDone(false);
-            block.setFetchSuccessful(false);
+            block.beginFetch(); // waits for a cancelled fetch of the block that has not returned yet
+            fetchBegun = true;
+            synchronized (this) {
+                if (cancelled) {
+                    return false;
+                }
+                block.setFetchDone(false);
+                block.setFetchSuccessful(false);
+                block.setResultLog(null); // of a fetch that was cancelled before
+            }
 
             // request
+            long startTime = plugin.getRequestSlots().acquire();
+            boolean finished = false;
+            boolean overloaded = false;
             try {
 
                 if (!persistenceCheck) {
@@ -61,38 +87,73 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
                 } else {
                     fetchResult = hlscIgnoreStore.fetch(fetchUri);
                 }
+                finished = true;
 
             } catch (FetchException e) {
-                block.setResultLog("-> fetch error: " + e.getMessage());
+                if (!isCancelled()) {
+                    block.setResultLog("-> fetch error: " + e.getMessage());
+                }
+                finished = e.getMode() != FetchException.FetchExceptionMode.CANCELLED;
+                overloaded = e.getMode() == FetchException.FetchExceptionMode.REJECTED_OVERLOAD;
+            } finally {
+                if (!finished || isCancelled()) {
+                    plugin.getRequestSlots().release();
+                } else if (fetchResult == null) {
+                    plugin.getRequestSlots().releaseFailed(overloaded);
+                } else if (persistenceCheck) {
+                    plugin.getRequestSlots().release(startTime, RequestSlots.Type.FETCH);
+                } else {
+                    plugin.getRequestSlots().releaseFailed(false); // may come from the local store
+                }
             }
 
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            }
+            // the result counts only if the fetch was not cancelled in the meantime
+            synchronized (this) {
+                if (cancelled || Thread.currentThread().isInterrupted() || reinserter.isStopped()) {
+                    cancelled = true;
+                    return false;
+                }
 
-            // log / success flag
-            if (block.getResultLog() == null) {
-                if (fetchResult == null) {
-                    block.setResultLog("-> fetch failed");
-                } else {
-                    block.setBucket(new ArrayBucket(fetchResult.asByteArray()));
-                    block.setFetchSuccessful(true);
-                    block.setResultLog("-> fetch successful");
-                    fetchSuccessful = true;
+                // log / success flag
+                if (block.getResultLog() == null) {
+                    if (fetchResult == null) {
+                        block.setResultLog("-> fetch failed");
+                    } else {
+                        if (BlockBuffers.hasRoom(fetchResult.asBucket().size())) {
+                            block.setData(BlockBuffers.read(fetchResult.asBucket()));
+                        } else {
+                            block.setSpilledData(BlockBuffers.spill(fetchResult.asBucket(),
+                                    plugin.pluginContext.node.clientCore.tempBucketFactory));
+                        }
+                        cacheData = copyForCache(); // saved outside, cancel() must not wait for the db
+                        block.setFetchSuccessful(true);
+                        block.setResultLog("-> fetch successful");
+                        fetchSuccessful = true;
+                    }
                 }
-            }
 
-            //finish
-            reinserter.registerBlockFetchSuccess(block);
-            block.setFetchDone(true);
+                //finish
+                reinserter.registerBlockFetchSuccess(block);
+                block.setFetchDone(true);
+                ignored = false;
+            }
+            cacheBlock(cacheData);
 
         } catch (IOException e) {
+            ignored = false;
             log("SingleFetch.run(): " + e.getMessage(), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             if (fetchResult != null && fetchResult.asBucket() != null) {
                 fetchResult.asBucket().free();
             }
-            finish();
+            if (fetchBegun) {
+                block.endFetch();
+            }
+            if (!ignored) {
+                finish();
+            }
         }
 
         return fetchSuccessful;
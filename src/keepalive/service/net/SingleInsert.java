@@ -39,15 +39,18 @@ public class SingleInsert extends SingleJob implements Runnable {
 
     @Override
     public void run() {
-        Thread.currentThread().setName("KeepAlive SingleInsert");
-
         FreenetURI fetchUri = getUri();
         block.setInsertDone(false);
         block.setInsertSuccessful(false);
 
         try {
 
-            // fetch
+            // fetch, if the block is not cached
+            boolean cached = false;
+            if (block.getBucket() == null && loadCachedBlock()) {
+                cached = true;
+                log("-> data taken from the block cache", 2);
+            }
             if (block.getBucket() == null) {
                 SingleFetch singleFetch = new SingleFetch(reinserter, block, false);
                 singleFetch.call();
@@ -86,8 +89,24 @@ public class SingleInsert extends SingleJob implements Runnable {
                     // re-insert top blocks and single key files at very high priority, all others at medium prio.
                     short prio = segment.size() == 1 ? (short) 1 : (short) 3;
 
-                    FreenetURI insertUri = plugin.getFreenetClient()
-                            .insert(insertBlock, null, false, prio, insertContext, fetchUri.getCryptoKey());
+                    FreenetURI insertUri;
+                    long startTime = plugin.getRequestSlots().acquire();
+                    boolean finished = false;
+                    try {
+                        insertUri = plugin.getFreenetClient()
+                                .insert(insertBlock, null, false, prio, insertContext, fetchUri.getCryptoKey());
+                        finished = true;
+                        plugin.getRequestSlots().release(startTime, RequestSlots.Type.INSERT);
+                    } catch (InsertException e) {
+                        finished = true;
+                        plugin.getRequestSlots().releaseFailed(
+                                e.getMode() == InsertException.InsertExceptionMode.REJECTED_OVERLOAD);
+                        throw e;
+                    } finally {
+                        if (!finished) {
+                            plugin.getRequestSlots().release();
+                        }
+                    }
 
                     // insert finished
                     if (!reinserter.isActive()) {
@@ -98,6 +117,9 @@ public class SingleInsert extends SingleJob implements Runnable {
                         if (fetchUri.equals(insertUri)) {
                             block.setInsertSuccessful(true);
                             block.setResultLog("-> inserted: " + insertUri.toString());
+                            if (!cached && !block.isFetchSuccessful()) {
+                                cacheBlock(); // healed
+                            }
                         } else {
                             block.setResultLog("-> insertion failed - different uri: " + insertUri.toString());
                         }
@@ -118,6 +140,8 @@ public class SingleInsert extends SingleJob implements Runnable {
             // finish
             block.setInsertDone(true);
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             log("SingleInsert.run(): " + e.getMessage(), 0);
         } finally {
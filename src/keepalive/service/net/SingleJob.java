@@ -20,9 +20,14 @@ package keepalive.service.net;
 
 import freenet.keys.FreenetURI;
 import freenet.support.compress.Compressor;
+import freenet.support.io.BucketTools;
 import keepalive.Plugin;
+import keepalive.repository.BlockCacheRepository;
 import keepalive.service.reinserter.Reinserter;
 import keepalive.model.Block;
+import keepalive.model.BlockBuffers;
+
+import java.io.IOException;
 
 public abstract class SingleJob {
 
@@ -66,6 +71,46 @@ public abstract class SingleJob {
         return uri;
     }
 
+    /**
+     * Keeps the data of the block for the next reinsertion, if the block cache is on.
+     */
+    void cacheBlock() throws IOException {
+        cacheBlock(copyForCache());
+    }
+
+    /**
+     * @return a copy of the data of the block or null if it is not cached
+     */
+    byte[] copyForCache() throws IOException {
+        if (BlockCacheRepository.getInstance(plugin).isEnabled() && block.getUri().isCHK()
+                && block.getBucket() != null) {
+            return BucketTools.toByteArray(block.getBucket());
+        }
+        return null;
+    }
+
+    void cacheBlock(byte[] data) {
+        if (data != null) {
+            BlockCacheRepository.getInstance(plugin).save(block.getUri().getRoutingKey(), reinserter.getSiteId(),
+                    data);
+        }
+    }
+
+    /**
+     * @return true if the data of the block was found in the block cache
+     */
+    boolean loadCachedBlock() {
+        if (!block.getUri().isCHK() || reinserter.isStopped()) {
+            return false;
+        }
+        byte[] data = BlockCacheRepository.getInstance(plugin).findBlock(block.getUri());
+        if (data == null) {
+            return false;
+        }
+        block.setData(BlockBuffers.copyOf(data));
+        return true;
+    }
+
     void finish() {
         if (reinserter.isActive() && !reinserter.isInterrupted()) {
             // log
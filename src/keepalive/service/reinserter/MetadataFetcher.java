@@ -0,0 +1,203 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.client.FetchException;
+import freenet.support.api.Bucket;
+import keepalive.service.net.FetchFailedException;
+import keepalive.service.net.JobScheduler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fetches manifests and splitfile metadata ahead of the parser. The parser still walks the metadata in its own
+ * order, so the segments and blocks are numbered as before, but it announces the fetches it will need as soon as
+ * it sees them and they run in the meantime, blocking fetches on the shared workers. At most MAX_AHEAD results
+ * are fetched or kept before the parser asks for them. Used by the reinserter thread only.
+ */
+final class MetadataFetcher {
+
+    /**
+     * A fetch that runs on its own once it is started, like a fetch of the node with a callback.
+     */
+    interface Fetch {
+
+        Future<Bucket> start() throws Exception;
+    }
+
+    private static final int MAX_AHEAD = 8;
+
+    private final Reinserter reinserter;
+    private final JobScheduler.JobGroup jobs;
+    private final HashMap<Object, Fetch> waiting = new HashMap<>();
+    private final ArrayDeque<Object> waitingOrder = new ArrayDeque<>();
+    private final HashMap<Object, Future<Bucket>> started = new HashMap<>();
+
+    MetadataFetcher(Reinserter reinserter, JobScheduler.JobGroup jobs) {
+        this.reinserter = reinserter;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Fetches in the background, unless the key was announced before.
+     */
+    void prefetch(Object key, Fetch fetch) {
+        if (started.containsKey(key) || waiting.containsKey(key)) {
+            return;
+        }
+        waiting.put(key, fetch);
+        waitingOrder.add(key);
+        startWaiting();
+    }
+
+    /**
+     * Like prefetch(key, fetch) for a blocking fetch, that runs on a worker.
+     */
+    void prefetch(Object key, Callable<Bucket> job) {
+        prefetch(key, onWorker(job));
+    }
+
+    /**
+     * Waits for the result, the fetch is started now if it was not announced. The result is kept until forget.
+     */
+    Bucket get(Object key, Fetch fetch) throws FetchFailedException, FetchException, IOException {
+        Future<Bucket> future = started.get(key);
+        if (future == null) {
+            Fetch waitingFetch = waiting.remove(key);
+            waitingOrder.remove(key);
+            future = start(waitingFetch != null ? waitingFetch : fetch);
+            started.put(key, future);
+        }
+
+        while (true) {
+            if (reinserter.isInterrupted()) {
+                throw new FetchFailedException("Metadata fetch interrupted");
+            }
+            if (!reinserter.isActive()) {
+                throw new FetchFailedException("Manifest cannot be fetched");
+            }
+
+            try {
+                return future.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                // check the state of the reinserter
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FetchFailedException("Metadata fetch interrupted");
+            } catch (CancellationException e) {
+                forget(key);
+                throw new FetchFailedException("Metadata fetch cancelled");
+            } catch (ExecutionException e) {
+                forget(key);
+                Throwable cause = e.getCause();
+                if (cause instanceof FetchException) {
+                    throw (FetchException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof FetchFailedException) {
+                    throw (FetchFailedException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Like get(key, fetch) for a blocking fetch, that runs on a worker.
+     */
+    Bucket get(Object key, Callable<Bucket> job) throws FetchFailedException, FetchException, IOException {
+        return get(key, onWorker(job));
+    }
+
+    /**
+     * Frees the result, so the next announced fetch can start.
+     */
+    void forget(Object key) {
+        free(started.remove(key));
+        startWaiting();
+    }
+
+    void cancel() {
+        for (Future<Bucket> future : started.values()) {
+            future.cancel(true);
+            free(future);
+        }
+        jobs.cancel();
+        waiting.clear();
+        waitingOrder.clear();
+        started.clear();
+    }
+
+    private void startWaiting() {
+        while (started.size() < MAX_AHEAD && !waitingOrder.isEmpty()) {
+            Object key = waitingOrder.poll();
+            started.put(key, start(waiting.remove(key)));
+        }
+    }
+
+    // a fetch that could not be started fails when its result is asked for
+    private Future<Bucket> start(Fetch fetch) {
+        try {
+            return fetch.start();
+        } catch (final Exception e) {
+            FutureTask<Bucket> failed = new FutureTask<>(new Callable<Bucket>() {
+                @Override
+                public Bucket call() throws Exception {
+                    throw e;
+                }
+            });
+            failed.run();
+            return failed;
+        }
+    }
+
+    private static void free(Future<Bucket> future) {
+        if (future == null || !future.isDone() || future.isCancelled()) {
+            return;
+        }
+        try {
+            Bucket bucket = future.get();
+            if (bucket != null) {
+                bucket.free();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // nothing to free
+        }
+    }
+
+    private Fetch onWorker(final Callable<Bucket> job) {
+        return new Fetch() {
+            @Override
+            public Future<Bucket> start() {
+                return jobs.submit(job);
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.keys.FreenetURI;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The registrations made while a manifest or splitfile metadata was parsed, in their order. Content parsed
+ * below it is stored in its own record and referenced by key. Replaying a record registers the same blocks and
+ * manifests with the same segment numbers as parsing the content again.
+ */
+final class ParseRecord {
+
+    /**
+     * Receives the registrations of a replayed record.
+     */
+    interface Target {
+
+        void registerBlock(FreenetURI uri, boolean newSegment, boolean isDataBlock);
+
+        void registerManifest(FreenetURI uri);
+    }
+
+    /**
+     * Loads the records that are referenced.
+     */
+    interface Source {
+
+        /**
+         * @return the record or null if it doesn't exist
+         */
+        byte[] load(String key);
+    }
+
+    private static final byte BLOCK = 0;
+    private static final byte MANIFEST = 1;
+    private static final byte PARSED = 2;
+
+    private final String key;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private boolean complete = true;
+
+    ParseRecord(String key) {
+        this.key = key;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    void addBlock(FreenetURI uri, boolean newSegment, boolean isDataBlock) {
+        try {
+            out.writeByte(BLOCK);
+            out.writeUTF(uri.toString());
+            out.writeBoolean(newSegment);
+            out.writeBoolean(isDataBlock);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by an array
+        }
+    }
+
+    void addManifest(FreenetURI uri) {
+        try {
+            out.writeByte(MANIFEST);
+            out.writeUTF(uri.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void addParsed(String parsedKey) {
+        try {
+            out.writeByte(PARSED);
+            out.writeUTF(parsedKey);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The content was not parsed completely (no metadata found, a part could not be read), the record must not
+     * be saved.
+     */
+    void setIncomplete() {
+        complete = false;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The record and the records it references are read before the first registration, so a broken or missing
+     * record registers nothing.
+     */
+    static void replay(String key, Source source, Target target) throws IOException {
+        List<Object[]> entries = new ArrayList<>();
+        read(key, source, entries);
+
+        for (Object[] entry : entries) {
+            if (entry.length == 3) {
+                target.registerBlock((FreenetURI) entry[0], (Boolean) entry[1], (Boolean) entry[2]);
+            } else {
+                target.registerManifest((FreenetURI) entry[0]);
+            }
+        }
+    }
+
+    // the entries of the referenced records take the place of the reference
+    private static void read(String key, Source source, List<Object[]> entries) throws IOException {
+        byte[] data = source.load(key);
+        if (data == null) {
+            throw new IOException("Parse record not found: " + key);
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int type;
+            while ((type = in.read()) != -1) {
+                switch (type) {
+                    case BLOCK:
+                        entries.add(new Object[]{new FreenetURI(in.readUTF()), in.readBoolean(), in.readBoolean()});
+                        break;
+                    case MANIFEST:
+                        entries.add(new Object[]{new FreenetURI(in.readUTF())});
+                        break;
+                    case PARSED:
+                        read(in.readUTF(), source, entries);
+                        break;
+                    default:
+                        throw new IOException("Unknown parse record entry: " + type);
+                }
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ package keepalive.service.reinserter;
 import freenet.client.*;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.InsertContext.CompatibilityMode;
-import freenet.client.Metadata.SplitfileAlgorithm;
 import freenet.client.async.ClientBaseCallback;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientGetState;
@@ -32,44 +31,72 @@ import freenet.client.async.SplitFileFetcher;
 import freenet.client.async.SplitFileSegmentKeys;
 import freenet.client.async.StreamGenerator;
 import freenet.crypt.HashResult;
-import freenet.keys.CHKBlock;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
-import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import keepalive.Plugin;
 import keepalive.model.Block;
+import keepalive.model.BlockList;
+import keepalive.model.BlockSource;
 import keepalive.model.Segment;
+import keepalive.model.Site;
+import keepalive.model.SiteStatistic;
+import keepalive.repository.BlockListFile;
 import keepalive.repository.BlockRepository;
+import keepalive.repository.ParseResultRepository;
+import keepalive.repository.SiteRepository;
 import keepalive.service.net.*;
+import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarInputStream;
 
 public final class Reinserter extends Thread {
 
+    private static final byte[] ZIP_MAGIC = {'P', 'K', 3, 4};
+    private static final byte[] TAR_MAGIC = {'u', 's', 't', 'a', 'r'};
+    private static final int TAR_MAGIC_OFFSET = 257;
+
     private final Plugin plugin;
     private final int siteId;
     private final CountDownLatch latch;
     private PluginRespirator pr;
-    private long lastActivityTime;
-    private HashMap<FreenetURI, Metadata> manifestURIs;
+    private volatile long lastActivityTime;
+    private volatile boolean stopped; // the memory of the segments is given back, jobs must not fill it again
+    private LinkedHashMap<FreenetURI, Metadata> manifestURIs; // parsed in the order they were found
+    private MetadataFetcher metadataFetcher;
+    private final ArrayDeque<ParseRecord> parseRecords = new ArrayDeque<>(); // innermost first
     private HashMap<FreenetURI, Block> blocks;
+    private BlockSource blockList;
     private int parsedSegmentId;
     private int parsedBlockId;
-    private ArrayList<Segment> segments = new ArrayList<>();
+    private SiteRepository siteRepository;
+    private int blockCount;
+    private int lastSegmentId; // last finished segment, written to the db when it changes
+    private SiteStatistic statistic;
+    private long statisticSavingTimestamp;
+    private final List<Segment> segments = Collections.synchronizedList(new ArrayList<Segment>()); // read by the workers
+    private SegmentPipeline pipeline;
 
     public Reinserter(Plugin plugin, int siteId, CountDownLatch latch) {
         this.plugin = plugin;
@@ -84,9 +111,16 @@ public final class Reinserter extends Thread {
 
             // init
             pr = plugin.pluginContext.pluginRespirator;
-            manifestURIs = new HashMap<>();
+            manifestURIs = new LinkedHashMap<>();
             blocks = new HashMap<>();
-            String uriProp = plugin.getProp("uri_" + siteId);
+            siteRepository = SiteRepository.getInstance(plugin);
+            Site site = siteRepository.findOne(siteId);
+            if (site == null) {
+                return;
+            }
+            blockCount = site.getBlocks();
+            lastSegmentId = site.getSegment();
+            String uriProp = site.getUri();
             plugin.log("start reinserter for site " + uriProp + " (" + siteId + ")", 1);
             plugin.clearLog(plugin.getLogFilename(siteId));
             isActive(true);
@@ -106,8 +140,10 @@ public final class Reinserter extends Thread {
                         plugin.removeUri(siteId);
                         return;
                     } else {
-                        plugin.setProp("uri_" + siteId, newUri.toString());
-                        plugin.setProp("blocks_" + siteId, "?");
+                        siteRepository.updateUri(siteId, newUriString);
+                        uriProp = newUriString;
+                        blockCount = Site.BLOCKS_UNKNOWN;
+                        siteRepository.updateBlocks(siteId, blockCount);
                         uri = newUri;
                     }
                 }
@@ -146,15 +182,19 @@ public final class Reinserter extends Thread {
 
             // load list of keys (if exists)
             // skip if 1 because the manifest failed to fetch before.
-            String numBlocks = plugin.getProp("blocks_" + siteId);
-            if (!numBlocks.equals("?") && !numBlocks.equals("1")) {
+            if (blockCount != Site.BLOCKS_UNKNOWN && blockCount != 1) {
                 log("*** loading list of blocks ***", 0, 0);
-                loadBlockUris();
+                blockList = loadBlockUris();
             } else {
                 // parse metadata
                 log("*** parsing data structure ***", 0, 0);
                 parsedSegmentId = -1;
                 parsedBlockId = -1;
+                long parseStart = System.currentTimeMillis();
+                metadataFetcher = new MetadataFetcher(this, plugin.getJobScheduler().newGroup(siteId));
+                for (FreenetURI manifestUri : manifestURIs.keySet()) {
+                    prefetchManifest(manifestUri);
+                }
                 while (manifestURIs.size() > 0) {
                     if (isInterrupted()) {
                         return;
@@ -165,7 +205,7 @@ public final class Reinserter extends Thread {
                         return;
                     }
 
-                    uri = (FreenetURI) manifestURIs.keySet().toArray()[0];
+                    uri = manifestURIs.keySet().iterator().next();
                     log(uri.toString(), 0);
                     try {
                         parseMetadata(uri, null, 0);
@@ -174,63 +214,60 @@ public final class Reinserter extends Thread {
                         return;
                     }
                     manifestURIs.remove(uri);
+                    metadataFetcher.forget(uri);
                 }
+                metadataFetcher.cancel();
 
                 if (isInterrupted()) {
                     return;
                 }
+                ParseResultRepository.getInstance(plugin).deleteUnused(siteId, parseStart);
 
+                blockList = new BlockList(blocks.values());
+                blocks = null;
                 saveBlockUris();
-                plugin.setIntProp("blocks_" + siteId, blocks.size());
-                plugin.saveProp();
+                blockCount = blockList.size();
+                siteRepository.updateBlocks(siteId, blockCount);
+
+                // continue from the file, so only the segment in work stays in memory
+                blockList = loadBlockUris();
             }
 
             // max segment id
-            int maxSegmentId = -1;
-            for (Block block : blocks.values()) {
-                maxSegmentId = Math.max(maxSegmentId, block.getSegmentId());
-            }
+            int maxSegmentId = blockList.segmentCount() - 1;
 
             // init reinsertion
-            if (plugin.getIntProp("segment_" + siteId) == maxSegmentId) {
-                plugin.setIntProp("segment_" + siteId, -1);
+            if (lastSegmentId == maxSegmentId) {
+                setLastSegmentId(-1);
             }
-            if (plugin.getIntProp("segment_" + siteId) == -1) {
+            if (lastSegmentId == -1) {
 
                 log("*** starting reinsertion ***", 0, 0);
 
                 // reset success counter
-                StringBuilder success = new StringBuilder();
-                StringBuilder segmentsSuccess = new StringBuilder();
-                for (int i = 0; i <= maxSegmentId; i++) {
-                    if (i > 0) success.append(",");
-
-                    success.append("0,0");
-                    segmentsSuccess.append("0");
-                }
-                plugin.setProp("success_" + siteId, success.toString());
-                plugin.setProp("success_segments_" + siteId, segmentsSuccess.toString());
-                plugin.saveProp();
+                siteRepository.deleteStatistic(siteId);
+                statistic = new SiteStatistic(maxSegmentId + 1);
 
             } else {
 
                 log("*** continuing reinsertion ***", 0, 0);
 
                 // add dummy segments
-                for (int i = 0; i <= plugin.getIntProp("segment_" + siteId); i++) {
+                for (int i = 0; i <= lastSegmentId; i++) {
                     segments.add(null);
                 }
 
                 // reset success counter
-                String[] successProp = plugin.getProp("success_" + siteId).split(",");
-                for (int i = (plugin.getIntProp("segment_" + siteId) + 1) * 2; i < successProp.length; i++) {
-                    successProp[i] = "0";
-                }
-                saveSuccessToProp(successProp);
+                statistic = siteRepository.findStatistic(siteId, maxSegmentId + 1);
+                statistic.reset(lastSegmentId + 1);
 
             }
+            plugin.registerStatistic(siteId, statistic);
+            saveStatistic(true);
 
-            // start reinsertion
+            // start reinsertion, segments that need it are healed and inserted while the next ones are checked
+            pipeline = new SegmentPipeline(this, plugin.getJobScheduler().newGroup(siteId), siteId);
+            pipeline.start();
             boolean doReinsertions = true;
             timeLeft -= System.currentTimeMillis() - startedAt;
             for (long timeSpent = 0; timeLeft - timeSpent > 0; timeSpent = System.currentTimeMillis() - startedAt, timeLeft -= timeSpent) {
@@ -241,20 +278,13 @@ public final class Reinserter extends Thread {
                 }
 
                 // next segment
-                int segmentSize = 0;
-                for (Block block : blocks.values()) {
-                    if (block.getSegmentId() == segments.size()) {
-                        segmentSize++;
-                    }
-                }
+                int segmentSize = blockList.segmentSize(segments.size());
                 if (segmentSize == 0) {
                     break; // ready
                 }
                 Segment segment = new Segment(this, segments.size(), segmentSize);
-                for (Block block : blocks.values()) {
-                    if (block.getSegmentId() == segments.size()) {
-                        segment.addBlock(block);
-                    }
+                for (Block block : blockList.getSegment(segments.size())) {
+                    segment.addBlock(block);
                 }
                 segments.add(segment);
                 log(segment, "*** segment size: " + segment.size(), 0);
@@ -283,28 +313,21 @@ public final class Reinserter extends Thread {
                         }
                     }
 
-                    ExecutorService executor = Executors.newFixedThreadPool(plugin.getIntProp("power"));
-                    FetchBlocksResult fetchBlocksResult = new FetchBlocksResult();
+                    FetchBlocksResult fetchBlocksResult;
                     try {
-                        for (Block requestedBlock : requestedBlocks) {
-                            // fetch a block
-                            SingleFetch singleFetch = new SingleFetch(this, requestedBlock, true);
-                            Future<Boolean> fetchFuture = executor.submit(singleFetch);
-                            fetchBlocksResult.addResult(fetchFuture.get());
-                        }
-                        executor.shutdown();
-                        boolean done = executor.awaitTermination(1, TimeUnit.HOURS);
-                        if (!done) {
+                        fetchBlocksResult = fetchBlocks(requestedBlocks, new FetchBlocksResult()
+                                .untilConclusive(plugin.getIntProp("splitfile_tolerance") / 100.0, getConfidenceZ()));
+                        if (fetchBlocksResult == null) {
                             log(segment, "<b>availability check failed</b>", 0);
                             return;
                         }
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         return;
-                    } finally {
-                        if (!executor.isShutdown()) {
-                            executor.shutdownNow();
-                        }
+                    }
+                    if (fetchBlocksResult.size() < requestedBlocks.size()) {
+                        log(segment, "availability check decided after " + fetchBlocksResult.size() + " of " +
+                                requestedBlocks.size() + " blocks", 0, 1);
                     }
 
                     double persistenceRate = fetchBlocksResult.calculatePersistenceRate();
@@ -314,8 +337,10 @@ public final class Reinserter extends Thread {
                         updateSegmentStatistic(segment, true);
                         log(segment, "availability of segment ok: " + ((int) (persistenceRate * 100)) +
                                 "% (approximated)", 0, 1);
-                        checkFinishedSegments();
-                        if (plugin.getIntProp("segment_" + siteId) != maxSegmentId) {
+                        if (!drainPipeline()) {
+                            return;
+                        }
+                        if (lastSegmentId != maxSegmentId) {
                             log(segment, "-> segment not reinserted; moving on will resume on next pass.", 0, 1);
                             break;
                         }
@@ -335,42 +360,51 @@ public final class Reinserter extends Thread {
                             }
                         }
 
-                        executor = Executors.newFixedThreadPool(plugin.getIntProp("power"));
-                        fetchBlocksResult = new FetchBlocksResult();
-                        try {
-                            for (Block requestedBlock : requestedBlocks) {
-                                // fetch next block that has not been fetched yet
-                                if (requestedBlock.isFetchInProcess()) {
-                                    SingleFetch singleFetch = new SingleFetch(this, requestedBlock, true);
-                                    Future<Boolean> fetchFuture = executor.submit(singleFetch);
-                                    fetchBlocksResult.addResult(fetchFuture.get());
-                                }
+                        // fetch blocks that have not been fetched yet
+                        ArrayList<Block> remainingBlocks = new ArrayList<>();
+                        int availableBlocks = 0;
+                        for (Block requestedBlock : requestedBlocks) {
+                            if (requestedBlock.isFetchInProcess()) {
+                                remainingBlocks.add(requestedBlock);
+                            } else if (requestedBlock.isFetchSuccessful()) {
+                                availableBlocks++;
                             }
+                        }
+
+                        // any dataSize() blocks are enough for the FEC decoding
+                        boolean minimalFetch = plugin.getIntProp("minimal_fetch_healing") == 1;
+                        fetchBlocksResult = new FetchBlocksResult();
+                        if (minimalFetch) {
+                            fetchBlocksResult.untilSuccessful(segment.dataSize() - availableBlocks);
+                        }
 
-                            executor.shutdown();
-                            boolean done = executor.awaitTermination(1, TimeUnit.HOURS);
-                            if (!done) {
+                        try {
+                            fetchBlocksResult = fetchBlocks(remainingBlocks, fetchBlocksResult);
+                            if (fetchBlocksResult == null) {
                                 log(segment, "<b>get all available blocks failed</b>", 0);
                                 return;
                             }
                         } catch (InterruptedException e) {
                             Thread.currentThread().interrupt();
                             return;
-                        } finally {
-                            if (!executor.isShutdown()) {
-                                executor.shutdownNow();
-                            }
                         }
 
                         persistenceRate = fetchBlocksResult.calculatePersistenceRate();
-                        if (persistenceRate >= (double) plugin.getIntProp("splitfile_tolerance") / 100.0) {
+                        if (minimalFetch && fetchBlocksResult.isComplete()) {
+                            // the other fetches are cancelled, they may still run but don't touch their blocks
+                            // anymore, so the healer owns the data of the segment from here on
+                            log(segment, "enough blocks for healing after " + fetchBlocksResult.size() + " of " +
+                                    remainingBlocks.size() + " fetches, reinsert the others", 0, 1);
+                        } else if (persistenceRate >= (double) plugin.getIntProp("splitfile_tolerance") / 100.0) {
                             doReinsertions = false;
                             segment.regFetchSuccess(persistenceRate);
                             updateSegmentStatistic(segment, true);
                             log(segment, "availability of segment ok: " + ((int) (persistenceRate * 100)) +
                                     "% (exact)", 0, 1);
-                            checkFinishedSegments();
-                            if (plugin.getIntProp("segment_" + siteId) != maxSegmentId) {
+                            if (!drainPipeline()) {
+                                return;
+                            }
+                            if (lastSegmentId != maxSegmentId) {
                                 log(segment, "-> segment not reinserted; moving on will resume on next pass.", 0, 1);
                                 break;
                             }
@@ -379,120 +413,24 @@ public final class Reinserter extends Thread {
                                     ((int) (persistenceRate * 100)) + "% (exact)</b>", 0, 1);
                         }
                     }
-
-                    if (doReinsertions) { // persistenceRate < splitfile tolerance
-                        // heal segment
-
-                        // init
-                        log(segment, "starting segment healing", 0, 1);
-                        byte[][] dataBlocks = new byte[segment.dataSize()][];
-                        byte[][] checkBlocks = new byte[segment.checkSize()][];
-                        boolean[] dataBlocksPresent = new boolean[dataBlocks.length];
-                        boolean[] checkBlocksPresent = new boolean[checkBlocks.length];
-                        for (int i = 0; i < dataBlocks.length; i++) {
-                            if (segment.getDataBlock(i).isFetchSuccessful()) {
-                                dataBlocks[i] = segment.getDataBlock(i).getBucket().toByteArray();
-                                dataBlocksPresent[i] = true;
-                            } else {
-                                dataBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-                                dataBlocksPresent[i] = false;
-                            }
-                        }
-                        for (int i = 0; i < checkBlocks.length; i++) {
-                            if (segment.getCheckBlock(i).isFetchSuccessful()) {
-                                checkBlocks[i] = segment.getCheckBlock(i).getBucket().toByteArray();
-                                checkBlocksPresent[i] = true;
-                            } else {
-                                checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-                                checkBlocksPresent[i] = false;
-                            }
-                        }
-
-                        // decode
-                        FECCodec codec = FECCodec.getInstance(SplitfileAlgorithm.ONION_STANDARD);
-                        log(segment, "start decoding", 0, 1);
-                        try {
-                            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
-                            log(segment, "-> decoding successful", 1, 2);
-                        } catch (Exception e) {
-                            log(segment, "<b>segment decoding (FEC) failed, do not reinsert</b>", 1, 2);
-                            updateSegmentStatistic(segment, false);
-                            segment.setHealingNotPossible(true);
-                            checkFinishedSegments();
-                            continue;
-                        }
-
-                        // encode (= build all data blocks  and check blocks from data blocks)
-                        log(segment, "start encoding", 0, 1);
-                        try {
-                            codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
-                            log(segment, "-> encoding successful", 1, 2);
-                        } catch (Exception e) {
-                            log(segment, "<b>segment encoding (FEC) failed, do not reinsert</b>", 1, 2);
-                            updateSegmentStatistic(segment, false);
-                            segment.setHealingNotPossible(true);
-                            checkFinishedSegments();
-                            continue;
-                        }
-
-                        // finish
-                        for (int i = 0; i < dataBlocks.length; i++) {
-                            log(segment, "dataBlock_" + i, dataBlocks[i]);
-                            segment.getDataBlock(i).setBucket(new ArrayBucket(dataBlocks[i]));
-                        }
-                        for (int i = 0; i < checkBlocks.length; i++) {
-                            log(segment, "checkBlock_" + i, checkBlocks[i]);
-                            segment.getCheckBlock(i).setBucket(new ArrayBucket(checkBlocks[i]));
-                        }
-                        log(segment, "segment healing (FEC) successful, start with reinsertion", 0, 1);
-                        updateSegmentStatistic(segment, true);
-                    }
                 }
 
-                // start reinsertion
+                // heal and insert in the pipeline
                 if (doReinsertions) {
-
-                    log(segment, "starting reinsertion", 0, 1);
-                    segment.initInsert();
-
-                    ExecutorService executor = Executors.newFixedThreadPool(plugin.getIntProp("power"));
                     try {
-                        for (int i = 0; i < segment.size(); i++) {
-                            checkFinishedSegments();
-                            isActive(true);
-                            if (segment.size() > 1) {
-                                if (segment.getBlock(i).isFetchSuccessful()) {
-                                    segment.regFetchSuccess(true);
-                                } else {
-                                    segment.regFetchSuccess(false);
-                                    SingleInsert singleInsert = new SingleInsert(this, segment.getBlock(i));
-                                    executor.submit(singleInsert);
-                                }
-                            } else {
-                                SingleInsert singleInsert = new SingleInsert(this, segment.getBlock(i));
-                                executor.submit(singleInsert);
-                            }
-                        }
-                        executor.shutdown();
-                        boolean done = executor.awaitTermination(1, TimeUnit.HOURS);
-                        if (!done) {
-                            log(segment, "<b>reinsertion failed</b>", 0);
-                            return;
-                        }
+                        pipeline.reinsert(segment);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         return;
-                    } finally {
-                        if (!executor.isShutdown()) {
-                            executor.shutdownNow();
-                        }
                     }
-
                 }
 
                 // check if segments are finished
                 checkFinishedSegments();
             }
+            if (!drainPipeline()) {
+                return;
+            }
 
             // wait for finishing top block, if it was fetched.
             if (segments.size() > 0 && segments.get(0) != null) {
@@ -521,7 +459,7 @@ public final class Reinserter extends Thread {
 
             // wait for finishing all segments
             if (doReinsertions) {
-                while (plugin.getIntProp("segment_" + siteId) != maxSegmentId) {
+                while (lastSegmentId != maxSegmentId) {
                     synchronized (this) {
                         try {
                             this.wait(1_000);
@@ -536,9 +474,9 @@ public final class Reinserter extends Thread {
                     }
 
                     if (!isActive()) { // TODO: this is a bypass
-                        plugin.log("Stop after stuck state (after healing, prop segment_" + siteId + "=" +
-                                plugin.getIntProp("segment_" + siteId) + ", maxSegmentId=" + maxSegmentId + ")", 0);
-                        // TODO: probably segment_siteId prop should be incremented (switched to next segment)
+                        plugin.log("Stop after stuck state (after healing, segment of site " + siteId + "=" +
+                                lastSegmentId + ", maxSegmentId=" + maxSegmentId + ")", 0);
+                        // TODO: probably the segment of the site should be incremented (switched to next segment)
                         return;
                     }
 
@@ -547,109 +485,221 @@ public final class Reinserter extends Thread {
             }
 
             // add to history if we've processed the last segment in the file.
-            if (plugin.getIntProp("blocks_" + siteId) > 0
-                    && plugin.getIntProp("segment_" + siteId) == maxSegmentId) {
-                int nPersistence = (int) ((double) plugin.getSuccessValues(siteId)[0]
-                        / plugin.getIntProp("blocks_" + siteId) * 100);
-                String cHistory = plugin.getProp("history_" + siteId);
-                String[] aHistory;
-                if (cHistory == null) {
-                    aHistory = new String[]{};
-                } else {
-                    aHistory = cHistory.split(",");
-                }
-                String cThisMonth = (new SimpleDateFormat("MM.yyyy")).format(new Date());
-                boolean bNewMonth = true;
-                if (cHistory != null && cHistory.contains(cThisMonth)) {
-                    bNewMonth = false;
-                    int nOldPersistence = Integer.parseInt(aHistory[aHistory.length - 1].split("-")[1]);
-                    nPersistence = Math.min(nPersistence, nOldPersistence);
-                    aHistory[aHistory.length - 1] = cThisMonth + "-" + nPersistence;
-                }
-                StringBuilder buf = new StringBuilder();
-                for (String aHistory1 : aHistory) {
-                    if (buf.length() > 0) {
-                        buf.append(",");
-                    }
-                    buf.append(aHistory1);
-                }
-                if (bNewMonth) {
-                    if (cHistory != null && cHistory.length() > 0) {
-                        buf.append(",");
-                    }
-                    buf.append(cThisMonth).append("-").append(nPersistence);
-                }
-                cHistory = buf.toString();
-                plugin.setProp("history_" + siteId, cHistory);
-                plugin.saveProp();
+            if (blockCount > 0 && lastSegmentId == maxSegmentId) {
+                int nPersistence = (int) ((double) plugin.getSuccessValues(siteId)[0] / blockCount * 100);
+                Calendar calendar = Calendar.getInstance();
+                siteRepository.saveHistory(siteId,
+                        calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, nPersistence);
             }
 
             log("*** reinsertion finished ***", 0, 0);
-            plugin.log("reinsertion finished for " + plugin.getProp("uri_" + siteId), 1);
+            plugin.log("reinsertion finished for " + uriProp, 1);
 
         } catch (Exception e) {
             plugin.log("Reinserter.run()", e);
         } finally {
+            stopped = true;
+            if (metadataFetcher != null) {
+                metadataFetcher.cancel();
+            }
+            if (pipeline != null) {
+                pipeline.shutdown();
+            }
+            discardSegments();
+            if (statistic != null) {
+                saveStatistic(true);
+                plugin.unregisterStatistic(siteId, statistic);
+            }
             latch.countDown();
             log("stopped", 0);
             plugin.log("reinserter stopped (" + siteId + ")");
         }
     }
 
+    /**
+     * Fetches the blocks on the shared workers and counts the results in the order of the blocks.
+     *
+     * @return the fetch results or null if the blocks could not be fetched within an hour
+     */
+    private FetchBlocksResult fetchBlocks(List<Block> blocksToFetch) throws InterruptedException {
+        return fetchBlocks(blocksToFetch, new FetchBlocksResult());
+    }
+
+    /**
+     * Like fetchBlocks(blocksToFetch), but stops as soon as the result is complete. The fetches that are still
+     * running are cancelled then, their results are not counted and don't change the blocks. Results are taken
+     * in the order of the blocks, not as they arrive, since fast successes would come before slow failures.
+     */
+    private FetchBlocksResult fetchBlocks(List<Block> blocksToFetch, FetchBlocksResult fetchBlocksResult)
+            throws InterruptedException {
+        JobScheduler.JobGroup jobs = plugin.getJobScheduler().newGroup(siteId);
+        List<SingleFetch> fetches = new ArrayList<>(blocksToFetch.size());
+        List<Future<Boolean>> fetchFutures = new ArrayList<>(blocksToFetch.size());
+        try {
+            for (Block block : blocksToFetch) {
+                SingleFetch fetch = new SingleFetch(this, block, true);
+                fetches.add(fetch);
+                fetchFutures.add(jobs.submit(fetch));
+            }
+
+            long deadline = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+            for (int i = 0; i < fetchFutures.size() && !fetchBlocksResult.isComplete(); i++) {
+                try {
+                    fetchBlocksResult.addResult(fetchFutures.get(i).get(
+                            deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    return null;
+                } catch (ExecutionException e) {
+                    plugin.log("Reinserter.fetchBlocks()", e.getCause());
+                    fetchBlocksResult.addResult(false);
+                }
+            }
+            return fetchBlocksResult;
+        } finally {
+            for (SingleFetch fetch : fetches) {
+                fetch.cancel(); // no effect on finished fetches
+            }
+            jobs.cancel();
+        }
+    }
+
+    /**
+     * Waits until the segments in the pipeline are healed and inserted.
+     *
+     * @return false if the reinserter has to stop
+     */
+    private boolean drainPipeline() {
+        checkFinishedSegments();
+        while (!pipeline.isEmpty()) {
+            synchronized (this) {
+                try {
+                    this.wait(1_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (isInterrupted()) {
+                return false;
+            }
+
+            Segment overdueSegment = pipeline.getOverdueSegment();
+            if (overdueSegment != null) {
+                log(overdueSegment, "<b>reinsertion failed</b>", 0);
+                return false;
+            }
+
+            if (!isActive()) {
+                plugin.log("Stop after stuck state (segment pipeline)", 0);
+                return false;
+            }
+
+            checkFinishedSegments();
+        }
+        return true;
+    }
+
+    // z-score of the sequential availability test, 0 if it is switched off
+    private double getConfidenceZ() {
+        int errorRate = Math.min(plugin.getIntProp("splitfile_test_error"), 50);
+        return errorRate > 0 ? FetchBlocksResult.confidenceZ(errorRate / 100.0) : 0;
+    }
+
+    // gives the memory of the unfinished segments back, jobs that still run may read it
+    private void discardSegments() {
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    segment.discard();
+                }
+            }
+        }
+    }
+
     private void checkFinishedSegments() {
         int segment;
-        while ((segment = plugin.getIntProp("segment_" + siteId)) < segments.size() - 1) {
+        while ((segment = lastSegmentId) < segments.size() - 1) {
             if (segments.get(segment + 1).isFinished()) {
-                plugin.setIntProp("segment_" + siteId, segment + 1);
+                setLastSegmentId(segment + 1);
             } else {
                 break;
             }
         }
-        plugin.saveProp();
+        saveStatistic(false);
     }
 
-    private void saveBlockUris() throws IOException {
-        File f = new File(plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId));
-        if (f.exists()) {
-            if (!f.delete()) {
-                log("Reinserter.saveBlockUris(): remove block list log files was not successful.", 0);
+    // statistic updates are batched, they are written at most every 10 seconds
+    private void saveStatistic(boolean force) {
+        long now = System.currentTimeMillis();
+        if (force || now - statisticSavingTimestamp > 10_000) {
+            statisticSavingTimestamp = now;
+            // the site may have been removed in the meantime
+            if (siteRepository.findOne(siteId) != null) {
+                siteRepository.saveStatistic(siteId, statistic);
             }
         }
+    }
 
-        try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
-            file.setLength(0);
-            for (Block block : blocks.values()) {
-                if (file.getFilePointer() > 0) {
-                    file.writeBytes("\n");
-                }
-                String type = "d";
-                if (!block.isDataBlock()) {
-                    type = "c";
-                }
-                file.writeBytes(block.getUri().toString() + "#" + block.getSegmentId() + "#" + block.getId() + "#" + type);
-            }
+    private void setLastSegmentId(int segmentId) {
+        lastSegmentId = segmentId;
+        siteRepository.updateSegment(siteId, segmentId);
+    }
+
+    // keeps the fetched manifest block, the top block is inserted from it if it gets lost
+    private void saveManifestBlock(FreenetURI uri, Bucket data) throws IOException {
+        if (data.size() > BlockRepository.MAX_DATA_SIZE) {
+            log("manifest not saved, too big: " + data.size() + " bytes", 0, 2);
+            return;
         }
+        BlockRepository.getInstance(plugin).saveOrUpdate(uri.toString(), BucketTools.toByteArray(data));
     }
 
-    private synchronized void loadBlockUris() throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(
-                plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId), "r")) {
+    private void saveBlockUris() throws IOException {
+        BlockListFile.save(new File(plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId)), blockList);
+    }
 
-            String values;
-            while ((values = file.readLine()) != null) {
-                String[] aValues = values.split("#");
-                FreenetURI uri = new FreenetURI(aValues[0]);
-                int segmentId = Integer.parseInt(aValues[1]);
-                int blockId = Integer.parseInt(aValues[2]);
-                boolean isDataBlock = aValues[3].equals("d");
-                blocks.put(uri, new Block(uri, segmentId, blockId, isDataBlock));
-            }
+    private BlockSource loadBlockUris() throws IOException {
+        File file = new File(plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId));
+        if (file.exists()) {
+            return BlockListFile.open(file);
+        }
 
+        // migrate the text block list of older versions
+        File legacyFile = new File(plugin.getPluginDirectory() + plugin.getLegacyBlockListFilename(siteId));
+        BlockList legacyBlockList = BlockListFile.loadLegacy(legacyFile);
+        BlockListFile.save(file, legacyBlockList);
+        if (!legacyFile.delete()) {
+            log("Reinserter.loadBlockUris(): remove text block list was not successful.", 0);
         }
+        log("block list converted to binary format", 0, 1);
+        return BlockListFile.open(file);
     }
 
     private void parseMetadata(FreenetURI uri, Metadata metadata, int level)
             throws FetchFailedException, MetadataParseException, FetchException, IOException {
+        if (metadata != null || uri == null || !uri.isCHK()) {
+            parseContent(uri, metadata, level);
+            return;
+        }
+
+        // a manifest behind a CHK never changes, parse it once
+        String parseKey = manifestParseKey(uri);
+        if (replayParse(parseKey, level)) {
+            return;
+        }
+        ParseRecord record = startParseRecord(parseKey);
+        boolean parsed = false;
+        try {
+            parseContent(uri, null, level);
+            parsed = true;
+        } finally {
+            finishParseRecord(record, parsed);
+        }
+    }
+
+    private void parseContent(FreenetURI uri, Metadata metadata, int level)
+            throws FetchFailedException, MetadataParseException, FetchException, IOException {
         if (isInterrupted()) {
             return;
         }
@@ -659,12 +709,14 @@ public final class Reinserter extends Thread {
 
         // constructs top level simple manifest (= first action on a new uri)
         if (metadata == null) {
-            FetchResult fetchResult = Client.fetch(uri, plugin.getFreenetClient());
-            BlockRepository.getInstance(plugin).saveOrUpdate(uri.toString(), fetchResult.asByteArray());
+            Bucket data = metadataFetcher.get(uri, newFetchJob(uri));
+            isActive(true);
+            saveManifestBlock(uri, data);
 
-            metadata = fetchManifest(uri, null, null);
+            metadata = fetchManifest(data, null, null);
             if (metadata == null) {
                 log("no metadata", level);
+                setParseIncomplete();
                 return;
             }
         }
@@ -675,20 +727,22 @@ public final class Reinserter extends Thread {
             HashMap<String, Metadata> targetList = null;
             try {
                 targetList = metadata.getDocuments();
-            } catch (Exception ignored) {
+            } catch (Exception e) {
+                setParseIncomplete();
             }
 
             if (targetList != null) {
+                for (Entry<String, Metadata> entry : targetList.entrySet()) {
+                    // remember document name
+                    entry.getValue().resolve(entry.getKey());
+                    prefetchDocument(uri, entry.getValue());
+                }
                 for (Entry<String, Metadata> entry : targetList.entrySet()) {
                     if (isInterrupted()) {
                         return;
                     }
-                    // get document
-                    Metadata target = entry.getValue();
-                    // remember document name
-                    target.resolve(entry.getKey());
                     // parse document
-                    parseMetadata(uri, target, level + 1);
+                    parseMetadata(uri, entry.getValue(), level + 1);
                 }
             }
 
@@ -698,7 +752,13 @@ public final class Reinserter extends Thread {
         // redirect to submanifest
         if (metadata.isArchiveMetadataRedirect()) {
             log("document (" + getMetadataType(metadata) + "): " + metadata.getResolvedName(), level);
-            Metadata subManifest = fetchManifest(uri, metadata.getArchiveType(), metadata.getArchiveInternalName());
+            Metadata subManifest = fetchManifest(metadataFetcher.get(uri, newFetchJob(uri)),
+                    metadata.getArchiveType(), metadata.getArchiveInternalName());
+            if (subManifest == null) {
+                log("no metadata", level);
+                setParseIncomplete();
+                return;
+            }
             parseMetadata(uri, subManifest, level);
             return;
         }
@@ -745,50 +805,203 @@ public final class Reinserter extends Thread {
 
             // create metadata from splitfile (if not simple splitfile)
             if (!metadata.isSimpleSplitfile()) {
-                // TODO: move fetch to net package
-                FetchContext fetchContext = pr.getHLSimpleClient().getFetchContext();
-                ClientContext clientContext = pr.getNode().clientCore.clientContext;
-                FetchWaiter fetchWaiter = new FetchWaiter(plugin.getFreenetClient());
-                List<COMPRESSOR_TYPE> decompressors = new LinkedList<>();
                 if (metadata.isCompressed()) {
                     log("is compressed: " + metadata.getCompressionCodec(), level + 1);
-                    decompressors.add(metadata.getCompressionCodec());
                 } else {
                     log("is not compressed", level + 1);
                 }
-                SplitfileGetCompletionCallback cb = new SplitfileGetCompletionCallback(fetchWaiter);
-                VerySimpleGetter vsg = new VerySimpleGetter((short) 2, null, plugin.getFreenetClient());
-                SplitFileFetcher sf = new SplitFileFetcher(metadata, cb, vsg,
-                        fetchContext, true, decompressors,
-                        metadata.getClientMetadata(), 0L, metadata.topDontCompress,
-                        metadata.topCompatibilityMode.code, false, metadata.getResolvedURI(),
-                        true, clientContext);
-                sf.schedule(clientContext);
-
-                // fetchWaiter.waitForCompletion();
-                while (cb.getDecompressedData() == null) { // workaround because in some cases fetchWaiter.waitForCompletion() never finished
-                    if (isInterrupted()) {
-                        return;
+                String parseKey = splitfileParseKey(metadata);
+                if (replayParse(parseKey, level + 1)) {
+                    metadataFetcher.forget(metadata); // in case it was announced before it was parsed
+                    return;
+                }
+                ParseRecord record = startParseRecord(parseKey);
+                boolean parsed = false;
+                try {
+                    Bucket splitfileData = metadataFetcher.get(metadata, newSplitfileFetch(metadata));
+                    isActive(true);
+                    Metadata splitfileMetadata;
+                    try {
+                        splitfileMetadata = fetchManifest(splitfileData, null, null);
+                    } finally {
+                        metadataFetcher.forget(metadata);
                     }
-
-                    if (!isActive()) {
-                        throw new FetchFailedException("Manifest cannot be fetched");
+                    if (splitfileMetadata != null) {
+                        parseMetadata(null, splitfileMetadata, level + 1);
+                    } else {
+                        log("no metadata", level + 1);
+                        setParseIncomplete();
                     }
+                    parsed = true;
+                } finally {
+                    finishParseRecord(record, parsed);
+                }
+            }
+        }
+    }
 
-                    synchronized (this) {
-                        try {
-                            wait(100);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            return;
-                        }
-                    }
+    // announces the fetch that parsing the document will need, so it runs while the documents before are parsed
+    private void prefetchDocument(FreenetURI uri, Metadata document) throws FetchException {
+        if (document.isArchiveMetadataRedirect() && uri != null) {
+            metadataFetcher.prefetch(uri, newFetchJob(uri));
+        } else if (document.isSplitfile() && !document.isSimpleSplitfile()
+                && !ParseResultRepository.getInstance(plugin).exists(splitfileParseKey(document))) {
+            metadataFetcher.prefetch(document, newSplitfileFetch(document));
+        }
+    }
+
+    // manifests that were parsed before are not fetched
+    private void prefetchManifest(FreenetURI uri) {
+        if (!uri.isCHK() || !ParseResultRepository.getInstance(plugin).exists(manifestParseKey(uri))) {
+            metadataFetcher.prefetch(uri, newFetchJob(uri));
+        }
+    }
+
+    private static String manifestParseKey(FreenetURI uri) {
+        return "manifest:" + Client.normalizeUri(uri);
+    }
+
+    // the splitfile is addressed by its block keys, they are the same if and only if the content is
+    private static String splitfileParseKey(Metadata metadata) throws FetchException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(metadata.getCompressionCodec()).getBytes("UTF-8"));
+            for (SplitFileSegmentKeys segmentKeys : ((Metadata) metadata.clone()).grabSegmentKeys()) {
+                int blockCount = segmentKeys.getDataBlocks() + segmentKeys.getCheckBlocks();
+                for (int i = 0; i < blockCount; i++) {
+                    digest.update(segmentKeys.getKey(i, null, false).getURI().toString().getBytes("UTF-8"));
+                }
+            }
+            return "splitfile:" + new BigInteger(1, digest.digest()).toString(16);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // part of every jre
+        }
+    }
+
+    // registers the blocks and manifests of content that was parsed before, false if it wasn't
+    private boolean replayParse(String parseKey, int level) {
+        final ParseResultRepository parseResults = ParseResultRepository.getInstance(plugin);
+        if (!parseResults.exists(parseKey)) {
+            return false;
+        }
+
+        final int blockLevel = level + 1;
+        try {
+            ParseRecord.replay(parseKey, new ParseRecord.Source() {
+                @Override
+                public byte[] load(String key) {
+                    return parseResults.findOne(key, siteId); // marks it as used by the site
+                }
+            }, new ParseRecord.Target() {
+                @Override
+                public void registerBlock(FreenetURI uri, boolean newSegment, boolean isDataBlock) {
+                    registerBlockUri(uri, newSegment, isDataBlock, blockLevel);
+                }
+
+                @Override
+                public void registerManifest(FreenetURI uri) {
+                    registerManifestUri(uri, blockLevel);
+                }
+            });
+        } catch (IOException e) {
+            log("broken parse result, parse again: " + e.getMessage(), level, 2);
+            return false;
+        }
+        log("-> parsed before, " + parseKey, level, 2);
+
+        ParseRecord outerRecord = parseRecords.peek();
+        if (outerRecord != null) {
+            outerRecord.addParsed(parseKey);
+        }
+        return true;
+    }
+
+    // the record of the content in work is not saved
+    private void setParseIncomplete() {
+        ParseRecord record = parseRecords.peek();
+        if (record != null) {
+            record.setIncomplete();
+        }
+    }
+
+    private ParseRecord startParseRecord(String parseKey) {
+        ParseRecord record = new ParseRecord(parseKey);
+        parseRecords.push(record);
+        return record;
+    }
+
+    // saves the record if the content was parsed completely, the record around it references it then
+    private void finishParseRecord(ParseRecord record, boolean parsed) {
+        parseRecords.remove(record);
+        ParseRecord outerRecord = parseRecords.peek();
+        if (!parsed || !record.isComplete() || isInterrupted()) {
+            if (outerRecord != null) {
+                outerRecord.setIncomplete(); // it would miss the registrations of this one
+            }
+            return;
+        }
+        ParseResultRepository.getInstance(plugin).save(record.getKey(), siteId, record.toByteArray());
+        if (outerRecord != null) {
+            outerRecord.addParsed(record.getKey());
+        }
+    }
+
+    private Callable<Bucket> newFetchJob(FreenetURI uri) {
+        final FreenetURI fetchUri = uri.clone(); // Client.fetch changes the control flag
+        return new Callable<Bucket>() {
+            @Override
+            public Bucket call() throws Exception {
+                plugin.getRequestSlots().acquire();
+                try {
+                    return Client.fetch(fetchUri, plugin.getFreenetClient()).asBucket();
+                } finally {
+                    plugin.getRequestSlots().release();
                 }
-                sf.cancel(clientContext);
-                metadata = fetchManifest(cb.getDecompressedData(), null, null);
-                parseMetadata(null, metadata, level + 1);
             }
+        };
+    }
+
+    private MetadataFetcher.Fetch newSplitfileFetch(Metadata metadata) {
+        final Metadata splitfile = (Metadata) metadata.clone(); // the parser grabs the keys of the original
+        return new MetadataFetcher.Fetch() {
+            @Override
+            public Future<Bucket> start() throws Exception {
+                return fetchSplitfileMetadata(splitfile);
+            }
+        };
+    }
+
+    /**
+     * Schedules the fetch of the metadata that is stored as splitfile, no thread waits for it.
+     *
+     * @return the decompressed metadata in a temp bucket, as soon as the fetch succeeded or failed
+     */
+    private Future<Bucket> fetchSplitfileMetadata(Metadata metadata) throws Exception {
+        // TODO: move fetch to net package
+        FetchContext fetchContext = pr.getHLSimpleClient().getFetchContext();
+        ClientContext clientContext = pr.getNode().clientCore.clientContext;
+        List<COMPRESSOR_TYPE> decompressors = new LinkedList<>();
+        if (metadata.isCompressed()) {
+            decompressors.add(metadata.getCompressionCodec());
+        }
+        VerySimpleGetter vsg = new VerySimpleGetter((short) 2, null, plugin.getFreenetClient());
+
+        plugin.getRequestSlots().acquire(); // released by the callback
+        SplitfileGetCompletionCallback cb = new SplitfileGetCompletionCallback(clientContext,
+                fetchContext.maxOutputLength);
+        try {
+            SplitFileFetcher sf = new SplitFileFetcher(metadata, cb, vsg,
+                    fetchContext, true, decompressors,
+                    metadata.getClientMetadata(), 0L, metadata.topDontCompress,
+                    metadata.topCompatibilityMode.code, false, metadata.getResolvedURI(),
+                    true, clientContext);
+            cb.setFetcher(sf);
+            sf.schedule(clientContext);
+        } catch (Exception e) {
+            cb.complete(null, e);
+            throw e;
         }
+        return cb;
     }
 
     private String getMetadataType(Metadata metadata) {
@@ -831,11 +1044,42 @@ public final class Reinserter extends Thread {
         return plugin;
     }
 
+    public int getSiteId() {
+        return siteId;
+    }
+
     private static class FetchBlocksResult {
 
         private int successful = 0;
         private int failed = 0;
 
+        // stop rules, by default all blocks are fetched
+        private double tolerance;
+        private double z;
+        private int successesNeeded = Integer.MAX_VALUE;
+
+        /**
+         * Complete as soon as the results decide with confidence z whether the persistence rate reaches the
+         * tolerance, z = 0 switches the rule off.
+         */
+        FetchBlocksResult untilConclusive(double tolerance, double z) {
+            this.tolerance = tolerance;
+            this.z = z;
+            return this;
+        }
+
+        /**
+         * Complete as soon as the given number of blocks was fetched successfully.
+         */
+        FetchBlocksResult untilSuccessful(int successesNeeded) {
+            this.successesNeeded = successesNeeded;
+            return this;
+        }
+
+        boolean isComplete() {
+            return successful >= successesNeeded || (z > 0 && isConclusive());
+        }
+
         void addResult(boolean successful) {
             if (successful) {
                 this.successful++;
@@ -847,52 +1091,202 @@ public final class Reinserter extends Thread {
         double calculatePersistenceRate() {
             return (double) successful / (successful + failed);
         }
+
+        int size() {
+            return successful + failed;
+        }
+
+        /**
+         * @return true if the tolerance lies outside of the Wilson score interval of the persistence rate, so
+         * more results would not change the decision (with the error rate z stands for)
+         */
+        private boolean isConclusive() {
+            int n = size();
+            if (n == 0) {
+                return false;
+            }
+            double rate = calculatePersistenceRate();
+            double z2 = z * z;
+            double center = (rate + z2 / (2 * n)) / (1 + z2 / n);
+            double margin = z / (1 + z2 / n) * Math.sqrt(rate * (1 - rate) / n + z2 / (4.0 * n * n));
+            return center - margin >= tolerance || center + margin < tolerance;
+        }
+
+        /**
+         * @return z with P(Z > z) = errorRate for a standard normal Z (Abramowitz/Stegun 26.2.23, error < 5e-4)
+         */
+        static double confidenceZ(double errorRate) {
+            double t = Math.sqrt(-2 * Math.log(errorRate));
+            return t - (2.515517 + 0.802853 * t + 0.010328 * t * t) /
+                    (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+        }
     }
 
-    private class SplitfileGetCompletionCallback implements GetCompletionCallback {
+    /**
+     * Result of a splitfile fetch, completed by the node when the fetch succeeded or failed.
+     */
+    private class SplitfileGetCompletionCallback implements GetCompletionCallback, Future<Bucket> {
+
+        private static final int PIPE_SIZE = 65536;
+
+        private final ClientContext clientContext;
+        private final long maxLength;
+        private SplitFileFetcher fetcher;
+        private Bucket decompressedSplitFileData = null;
+        private Exception failure;
+        private boolean done;
+        private boolean cancelled;
+
+        // the fetcher checks the length of the fetched data, the length after decompression is capped here
+        SplitfileGetCompletionCallback(ClientContext clientContext, long maxLength) {
+            this.clientContext = clientContext;
+            this.maxLength = maxLength;
+        }
 
-        private final FetchWaiter fetchWaiter;
-        private byte[] decompressedSplitFileData = null;
+        synchronized void setFetcher(SplitFileFetcher fetcher) {
+            this.fetcher = fetcher;
+        }
 
-        SplitfileGetCompletionCallback(FetchWaiter fetchWaiter) {
-            this.fetchWaiter = fetchWaiter;
+        // the first call decides
+        synchronized boolean complete(Bucket data, Exception failure) {
+            if (done) {
+                if (data != null) {
+                    data.free();
+                }
+                return false;
+            }
+            decompressedSplitFileData = data;
+            this.failure = failure;
+            done = true;
+            plugin.getRequestSlots().release();
+            notifyAll();
+            return true;
         }
 
         @Override
         public void onFailure(FetchException e, ClientGetState state, ClientContext context) {
-            fetchWaiter.onFailure(e, null);
+            complete(null, e);
         }
 
         @Override
         public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
                               List<? extends Compressor> decompressors,
                               ClientGetState state, ClientContext context) {
+            Bucket decompressedSplitFileData = null;
             try {
 
-                // get data
-                ByteArrayOutputStream rawOutStream = new ByteArrayOutputStream();
-                streamGenerator.writeTo(rawOutStream, null);
-                rawOutStream.close();
-                byte[] compressedSplitFileData = rawOutStream.toByteArray();
-
-                // decompress (if necessary)
-                if (decompressors.size() > 0) {
-                    try (ByteArrayInputStream compressedInStream = new ByteArrayInputStream(compressedSplitFileData);
-                         ByteArrayOutputStream decompressedOutStream = new ByteArrayOutputStream()) {
-                        decompressors.get(0).decompress(compressedInStream, decompressedOutStream, Integer.MAX_VALUE, -1);
-                        decompressedSplitFileData = decompressedOutStream.toByteArray();
+                decompressedSplitFileData = clientContext.tempBucketFactory.makeBucket(-1);
+                try (OutputStream outStream = decompressedSplitFileData.getOutputStream()) {
+                    if (decompressors.size() > 0) {
+                        decompress(streamGenerator, decompressors.get(0), outStream);
+                    } else {
+                        streamGenerator.writeTo(outStream, null);
                     }
-                    fetchWaiter.onSuccess(null, null);
-                } else {
-                    decompressedSplitFileData = compressedSplitFileData;
                 }
+                complete(decompressedSplitFileData, null);
 
             } catch (IOException e) {
                 plugin.log("SplitfileGetCompletionCallback.onSuccess(): " + e.getMessage());
+                if (decompressedSplitFileData != null) {
+                    decompressedSplitFileData.free();
+                }
+                complete(null, e);
+            }
+        }
+
+        // the generator writes into a pipe on its own thread, the decompressor reads from it on this one
+        private void decompress(final StreamGenerator streamGenerator, Compressor decompressor, OutputStream outStream)
+                throws IOException {
+            final PipedOutputStream rawOutStream = new PipedOutputStream();
+            final IOException[] writeFailure = new IOException[1];
+            Thread writer;
+            try (PipedInputStream rawInStream = new PipedInputStream(rawOutStream, PIPE_SIZE)) {
+                writer = new Thread("KeepAlive Metadata Stream") {
+                    @Override
+                    public void run() {
+                        try {
+                            streamGenerator.writeTo(rawOutStream, null);
+                        } catch (IOException e) {
+                            writeFailure[0] = e;
+                        } finally {
+                            try {
+                                rawOutStream.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                };
+                writer.setDaemon(true);
+                writer.start();
+                decompressor.decompress(rawInStream, outStream, maxLength, -1); // too long: CompressionOutputSizeException
+            } // closing the pipe ends the writer if the decompressor stopped early
+
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Metadata stream interrupted");
+            }
+            if (writeFailure[0] != null) {
+                throw writeFailure[0];
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            SplitFileFetcher fetcherToCancel;
+            synchronized (this) {
+                if (!complete(null, null)) {
+                    return false;
+                }
+                cancelled = true;
+                fetcherToCancel = fetcher;
+            }
+            if (fetcherToCancel != null) {
+                fetcherToCancel.cancel(clientContext);
             }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
         }
 
-        byte[] getDecompressedData() {
+        @Override
+        public synchronized Bucket get() throws InterruptedException, ExecutionException {
+            while (!done) {
+                wait();
+            }
+            return getResult();
+        }
+
+        @Override
+        public synchronized Bucket get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (!done) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(left);
+            }
+            return getResult();
+        }
+
+        private Bucket getResult() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
             return decompressedSplitFileData;
         }
 
@@ -994,84 +1388,138 @@ public final class Reinserter extends Thread {
         }
     }
 
-    private Metadata fetchManifest(FreenetURI uri, ARCHIVE_TYPE archiveType, String manifestName)
-            throws FetchException, IOException {
-        FetchResult result = Client.fetch(uri, plugin.getFreenetClient());
+    private Metadata fetchManifest(Bucket data, ARCHIVE_TYPE archiveType, String manifestName) throws IOException {
+        Metadata metadata = null;
 
-        return fetchManifest(result.asByteArray(), archiveType, manifestName);
-    }
+        if (manifestName == null) {
+            manifestName = ".metadata";
+        }
 
-    private Metadata fetchManifest(byte[] data, ARCHIVE_TYPE archiveType, String manifestName) throws IOException {
-        Metadata metadata = null;
-        try (ByteArrayInputStream fetchedDataStream = new ByteArrayInputStream(data)) {
+        if (archiveType == null) {
+            // try to construct metadata directly
+            try {
+                metadata = Metadata.construct(data);
+            } catch (MetadataParseException ignored) {
+            }
+        }
 
-            if (manifestName == null) {
-                manifestName = ".metadata";
+        if (metadata == null) {
+            // the container tells its type, a known type is only used if it doesn't
+            ARCHIVE_TYPE detectedType = detectArchiveType(data);
+            if (detectedType != null) {
+                archiveType = detectedType;
             }
 
-            if (archiveType == null) {
-                // try to construct metadata directly
+            // unzip and construct metadata
+            if (archiveType != null) {
                 try {
-                    metadata = Metadata.construct(data);
-                } catch (MetadataParseException ignored) {
+                    metadata = extractManifest(data, archiveType, manifestName,
+                            pr.getHLSimpleClient().getFetchContext().maxOutputLength);
+                } catch (Exception e) {
+                    log("unzip and construct metadata: " + e.getMessage(), 0, 2);
                 }
             }
+        }
 
-            if (metadata == null) {
-                // unzip and construct metadata
+        if (metadata != null) {
+            if (archiveType != null) {
+                manifestName += " (" + archiveType.name() + ")";
+            }
+            metadata.resolve(manifestName);
+        }
+        return metadata;
+    }
 
-                try {
+    // magic bytes of zip (local file header) and tar (ustar)
+    private static ARCHIVE_TYPE detectArchiveType(Bucket data) throws IOException {
+        byte[] header = new byte[TAR_MAGIC_OFFSET + TAR_MAGIC.length];
+        int length = 0;
+        try (InputStream inStream = data.getInputStream()) {
+            int bytes;
+            while (length < header.length && (bytes = inStream.read(header, length, header.length - length)) > 0) {
+                length += bytes;
+            }
+        }
+
+        if (length >= ZIP_MAGIC.length && startsWith(header, 0, ZIP_MAGIC)) {
+            return ARCHIVE_TYPE.ZIP;
+        }
+        if (length == header.length && startsWith(header, TAR_MAGIC_OFFSET, TAR_MAGIC)) {
+            return ARCHIVE_TYPE.TAR;
+        }
+        return null;
+    }
 
-                    InputStream inStream = null;
-                    String entryName = null;
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    // get archive stream (try if archive type unknown)
-                    if (archiveType == ARCHIVE_TYPE.TAR || archiveType == null) {
-                        inStream = new TarInputStream(fetchedDataStream);
-                        entryName = ((TarInputStream) inStream).getNextEntry().getName();
-                        archiveType = ARCHIVE_TYPE.TAR;
+    // reads the container up to the manifest entry, the entry itself into an array that grows with what was read
+    private static Metadata extractManifest(Bucket data, ARCHIVE_TYPE archiveType, String manifestName,
+                                            long maxLength) throws IOException, MetadataParseException {
+        try (InputStream inStream = archiveType == ARCHIVE_TYPE.TAR
+                ? new TarInputStream(new BufferedInputStream(data.getInputStream()))
+                : new ZipInputStream(new BufferedInputStream(data.getInputStream()))) {
+
+            while (true) {
+                String entryName;
+                long entrySize;
+                boolean stored; // the entry takes as many bytes in the container as it has
+                if (archiveType == ARCHIVE_TYPE.TAR) {
+                    TarEntry entry = ((TarInputStream) inStream).getNextEntry();
+                    if (entry == null) {
+                        return null;
                     }
-                    if (archiveType == ARCHIVE_TYPE.ZIP) {
-                        inStream = new ZipInputStream(fetchedDataStream);
-                        entryName = ((ZipInputStream) inStream).getNextEntry().getName();
-                        archiveType = ARCHIVE_TYPE.ZIP;
+                    entryName = entry.getName();
+                    entrySize = entry.getSize();
+                    stored = true;
+                } else {
+                    ZipEntry entry = ((ZipInputStream) inStream).getNextEntry();
+                    if (entry == null) {
+                        return null;
                     }
+                    entryName = entry.getName();
+                    entrySize = entry.getSize();
+                    stored = entry.getMethod() == ZipEntry.STORED;
+                }
 
-                    // construct metadata
-                    while (inStream != null && entryName != null) {
-                        if (entryName.equals(manifestName)) {
-                            byte[] buf = new byte[32768];
-                            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-                            int bytes;
-                            while ((bytes = inStream.read(buf)) > 0) {
-                                outStream.write(buf, 0, bytes);
-                            }
-                            outStream.close();
-                            metadata = Metadata.construct(outStream.toByteArray());
-                            break;
-                        }
-                        if (archiveType == ARCHIVE_TYPE.TAR) {
-                            entryName = ((TarInputStream) inStream).getNextEntry().getName();
-                        } else {
-                            entryName = ((ZipInputStream) inStream).getNextEntry().getName();
-                        }
+                if (entryName.equals(manifestName)) {
+                    // the size in the header is checked, not trusted
+                    if (stored && entrySize > data.size()) {
+                        throw new IOException("Manifest bigger than its container: " + entrySize);
                     }
-
-                } catch (Exception e) {
-                    if (archiveType != null)
-                        log("unzip and construct metadata: " + e.getMessage(), 0, 2);
+                    return Metadata.construct(readEntry(inStream, entrySize, maxLength));
                 }
             }
+        }
+    }
 
-            if (metadata != null) {
-                if (archiveType != null) {
-                    manifestName += " (" + archiveType.name() + ")";
-                }
-                metadata.resolve(manifestName);
-            }
-            return metadata;
+    // the size is -1 if it is not in the local header of a zip entry
+    private static byte[] readEntry(InputStream inStream, long size, long maxLength) throws IOException {
+        long limit = Math.min(maxLength, Integer.MAX_VALUE - 8);
+        if (size > limit) {
+            throw new IOException("Manifest too big: " + size);
+        }
 
+        byte[] buf = new byte[32768];
+        ByteArrayOutputStream outStream =
+                new ByteArrayOutputStream(size >= 0 ? (int) Math.min(size, buf.length) : buf.length);
+        int bytes;
+        while ((bytes = inStream.read(buf)) != -1) {
+            if (outStream.size() + bytes > limit) {
+                throw new IOException("Manifest too big: more than " + limit);
+            }
+            outStream.write(buf, 0, bytes);
+        }
+        if (size >= 0 && outStream.size() != size) {
+            throw new EOFException("Manifest truncated: " + outStream.size() + " of " + size);
         }
+        return outStream.toByteArray();
     }
 
     private FreenetURI updateUsk(FreenetURI uri) {
@@ -1087,11 +1535,18 @@ public final class Reinserter extends Thread {
     }
 
     private void registerManifestUri(FreenetURI uri, int level) {
+        ParseRecord record = parseRecords.peek();
+        if (record != null) {
+            record.addManifest(uri);
+        }
         uri = Client.normalizeUri(uri);
         if (manifestURIs.containsKey(uri)) {
             log("-> already registered manifest", level, 2);
         } else {
             manifestURIs.put(uri, null);
+            if (metadataFetcher != null) {
+                prefetchManifest(uri);
+            }
             if (level != -1) {
                 log("-> registered manifest", level, 2);
             }
@@ -1100,6 +1555,10 @@ public final class Reinserter extends Thread {
 
     private void registerBlockUri(FreenetURI uri, boolean newSegment, boolean isDataBlock, int logTabLevel) {
         if (uri != null) { // uri is null if metadata is created from splitfile
+            ParseRecord record = parseRecords.peek();
+            if (record != null) {
+                record.addBlock(uri, newSegment, isDataBlock);
+            }
 
             // no reinsertion for SSK but go to sublevel
             if (!uri.isCHK()) {
@@ -1127,39 +1586,29 @@ public final class Reinserter extends Thread {
         segments.get(block.getSegmentId()).regFetchSuccess(block.isFetchSuccessful());
     }
 
-    public synchronized void updateSegmentStatistic(Segment segment, boolean success) {
-        String successProp = plugin.getProp("success_segments_" + siteId);
+    public void updateSegmentStatistic(Segment segment, boolean success) {
         if (success) {
-            successProp = successProp.substring(0, segment.getId()) + "1" + successProp.substring(segment.getId() + 1);
+            statistic.setSegmentAvailable(segment.getId());
         }
-        plugin.setProp("success_segments_" + siteId, successProp);
-        plugin.saveProp();
     }
 
-    public synchronized void updateBlockStatistic(int id, int success, int failed) {
-        String[] successProp = plugin.getProp("success_" + siteId).split(",");
-        successProp[id * 2] = String.valueOf(success);
-        successProp[id * 2 + 1] = String.valueOf(failed);
-        saveSuccessToProp(successProp);
+    public void updateBlockStatistic(int id, int success, int failed) {
+        statistic.setBlocks(id, success, failed);
     }
 
-    private void saveSuccessToProp(String[] success) {
-        StringBuilder newSuccess = new StringBuilder();
-        for (int i = 0; i < success.length; i++) {
-            if (i > 0) {
-                newSuccess.append(",");
-            }
-            newSuccess.append(success[i]);
-        }
-        plugin.setProp("success_" + siteId, newSuccess.toString());
-        plugin.saveProp();
+    public void incrementBlockStatistic(int id, boolean success) {
+        statistic.addBlock(id, success);
+    }
+
+    public boolean isStopped() {
+        return stopped;
     }
 
     public boolean isActive() {
         return isActive(false);
     }
 
-    private boolean isActive(boolean newActivity) {
+    boolean isActive(boolean newActivity) {
         if (newActivity) {
             lastActivityTime = System.currentTimeMillis();
             return true;
@@ -1226,7 +1675,7 @@ public final class Reinserter extends Thread {
         }
     }
 
-    public ArrayList<Segment> getSegments() {
+    public List<Segment> getSegments() {
         return segments;
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.Plugin;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates over all sites and keeps up to "parallel_sites" reinserters running at the same time.
+ * The reinserters share the request budget of the plugin, so the number of sites in the list
+ * only affects the rotation time as far as the node capacity is the limit.
+ */
+public final class ReinserterRunner extends Thread {
+
+    private final Plugin plugin;
+    private final LinkedHashMap<Integer, Run> running = new LinkedHashMap<>();
+    private final HashMap<Integer, Reinserter> stopping = new HashMap<>();
+    private int nextSiteId;
+
+    public ReinserterRunner(Plugin plugin, int firstSiteId) {
+        this.plugin = plugin;
+        this.nextSiteId = firstSiteId;
+        this.setName("KeepAlive Reinserter Runner");
+    }
+
+    @Override
+    public void run() {
+        try {
+
+            while (!isInterrupted()) {
+                synchronized (this) {
+                    removeFinished();
+                    startNext();
+                    if (!running.isEmpty()) {
+                        plugin.setIntProp("active", running.keySet().iterator().next());
+                        plugin.saveProp();
+                    }
+
+                    wait(1_000);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                for (Run run : running.values()) {
+                    run.reinserter.interrupt();
+                }
+                running.clear();
+            }
+        }
+    }
+
+    public synchronized boolean isRunning(int siteId) {
+        return running.containsKey(siteId);
+    }
+
+    public synchronized void stop(int siteId) {
+        Run run = running.remove(siteId);
+        if (run != null) {
+            run.reinserter.interrupt();
+            stopping.put(siteId, run.reinserter);
+        }
+    }
+
+    private void removeFinished() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<Integer, Run>> iterator = running.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<Integer, Run> entry = iterator.next();
+            Run run = entry.getValue();
+            if (run.latch.getCount() == 0) {
+                iterator.remove();
+            } else if (now > run.deadline) {
+                run.reinserter.interrupt();
+                plugin.log("Terminated reinserter " + entry.getKey() + " by timeout");
+                stopping.put(entry.getKey(), run.reinserter);
+                iterator.remove();
+            }
+        }
+
+        // an interrupted reinserter may need a moment to leave the site
+        Iterator<Reinserter> stoppingIterator = stopping.values().iterator();
+        while (stoppingIterator.hasNext()) {
+            if (!stoppingIterator.next().isAlive()) {
+                stoppingIterator.remove();
+            }
+        }
+    }
+
+    private void startNext() {
+        int[] ids = plugin.getIds();
+        if (ids == null) {
+            return;
+        }
+
+        int parallelSites = Math.max(1, plugin.getIntProp("parallel_sites"));
+        while (running.size() < parallelSites) {
+            int siteId = nextSiteId(ids);
+            if (siteId == -1) {
+                return;
+            }
+
+            CountDownLatch latch = new CountDownLatch(1);
+            Reinserter reinserter = new Reinserter(plugin, siteId, latch);
+            long timeslot = TimeUnit.HOURS.toMillis(plugin.getIntProp("single_url_timeslot"));
+            running.put(siteId, new Run(reinserter, latch, System.currentTimeMillis() + timeslot));
+            nextSiteId = siteId + 1;
+            reinserter.start();
+        }
+    }
+
+    // first idle site at or after the rotation position, wraps around to the beginning of the list
+    private int nextSiteId(int[] ids) {
+        for (int id : ids) {
+            if (id >= nextSiteId && isIdle(id)) {
+                return id;
+            }
+        }
+        for (int id : ids) {
+            if (id < nextSiteId && isIdle(id)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isIdle(int siteId) {
+        return !running.containsKey(siteId) && !stopping.containsKey(siteId);
+    }
+
+    private static class Run {
+
+        final Reinserter reinserter;
+        final CountDownLatch latch;
+        final long deadline;
+
+        Run(Reinserter reinserter, CountDownLatch latch, long deadline) {
+            this.reinserter = reinserter;
+            this.latch = latch;
+            this.deadline = deadline;
+        }
+    }
+}
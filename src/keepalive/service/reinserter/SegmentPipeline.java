@@ -0,0 +1,280 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.client.FECCodec;
+import freenet.client.Metadata.SplitfileAlgorithm;
+import freenet.keys.CHKBlock;
+import keepalive.model.Block;
+import keepalive.model.BlockBuffers;
+import keepalive.model.Segment;
+import keepalive.repository.BlockCacheRepository;
+import keepalive.service.net.JobScheduler;
+import keepalive.service.net.SingleInsert;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Heal and insert stages of a reinserter. The reinserter checks the availability of the next segment while the
+ * segments that failed the check are healed and reinserted here. Both stages are bounded: one segment waits
+ * for healing and INSERTING_SEGMENTS segments are inserted at most, so checking can't run far ahead.
+ */
+final class SegmentPipeline extends Thread {
+
+    private static final int INSERTING_SEGMENTS = 2;
+    private static final long INSERT_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+
+    private final Reinserter reinserter;
+    private final JobScheduler.JobGroup insertJobs;
+    private final ArrayBlockingQueue<Segment> healQueue = new ArrayBlockingQueue<>(1);
+    private final Semaphore insertSlots = new Semaphore(INSERTING_SEGMENTS);
+    private final AtomicInteger segmentsInProgress = new AtomicInteger();
+    private final ConcurrentHashMap<Segment, Long> insertStarted = new ConcurrentHashMap<>();
+
+    SegmentPipeline(Reinserter reinserter, JobScheduler.JobGroup insertJobs, int siteId) {
+        this.reinserter = reinserter;
+        this.insertJobs = insertJobs;
+        setName("KeepAlive Healer " + siteId);
+        setDaemon(true);
+    }
+
+    /**
+     * Hands a segment that needs to be reinserted over, waits while the heal stage is busy.
+     */
+    void reinsert(Segment segment) throws InterruptedException {
+        segmentsInProgress.incrementAndGet();
+        try {
+            healQueue.put(segment);
+        } catch (InterruptedException e) {
+            segmentsInProgress.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if no segment is waiting, healed or inserted
+     */
+    boolean isEmpty() {
+        return segmentsInProgress.get() == 0;
+    }
+
+    /**
+     * @return the first segment whose insertion took longer than an hour, null if there is none
+     */
+    Segment getOverdueSegment() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Segment, Long> entry : insertStarted.entrySet()) {
+            if (now - entry.getValue() > INSERT_TIMEOUT) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops healing and cancels the insertions. Waits for the heal stage, so it doesn't hand arrays to the
+     * blocks after the reinserter freed them.
+     */
+    void shutdown() {
+        interrupt();
+        insertJobs.cancel();
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+
+            while (!isInterrupted()) {
+                Segment segment = healQueue.take();
+                boolean healed = segment.size() == 1 || heal(segment);
+                if (!healed) {
+                    segmentsInProgress.decrementAndGet();
+                    continue;
+                }
+
+                insertSlots.acquire();
+                insert(segment);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the arrays of the fetched blocks are used in place, the missing ones come from the block cache or the pool
+    private boolean heal(Segment segment) {
+        // init
+        reinserter.log(segment, "starting segment healing", 0, 1);
+        byte[][] dataBlocks = new byte[segment.dataSize()][];
+        byte[][] checkBlocks = new byte[segment.checkSize()][];
+        boolean[] dataBlocksPresent = new boolean[dataBlocks.length];
+        boolean[] checkBlocksPresent = new boolean[checkBlocks.length];
+        try {
+            for (int i = 0; i < dataBlocks.length; i++) {
+                Block block = segment.getDataBlock(i);
+                dataBlocks[i] = isFetched(block) ? block.getData() : findCached(block);
+                dataBlocksPresent[i] = dataBlocks[i] != null;
+                if (dataBlocks[i] == null) {
+                    dataBlocks[i] = BlockBuffers.acquire();
+                }
+            }
+            for (int i = 0; i < checkBlocks.length; i++) {
+                Block block = segment.getCheckBlock(i);
+                checkBlocks[i] = isFetched(block) ? block.getData() : findCached(block);
+                checkBlocksPresent[i] = checkBlocks[i] != null;
+                if (checkBlocks[i] == null) {
+                    checkBlocks[i] = BlockBuffers.acquire();
+                }
+            }
+        } catch (IOException e) { // spilled data that can't be read back
+            reinserter.log(segment, "<b>segment healing failed: " + e.getMessage() + "</b>", 1, 2);
+            healingFailed(segment, dataBlocks, checkBlocks);
+            return false;
+        }
+
+        // decode
+        FECCodec codec = FECCodec.getInstance(SplitfileAlgorithm.ONION_STANDARD);
+        reinserter.log(segment, "start decoding", 0, 1);
+        try {
+            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            reinserter.log(segment, "-> decoding successful", 1, 2);
+        } catch (Exception e) {
+            reinserter.log(segment, "<b>segment decoding (FEC) failed, do not reinsert</b>", 1, 2);
+            healingFailed(segment, dataBlocks, checkBlocks);
+            return false;
+        }
+
+        // encode (= build all data blocks  and check blocks from data blocks)
+        reinserter.log(segment, "start encoding", 0, 1);
+        try {
+            codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            reinserter.log(segment, "-> encoding successful", 1, 2);
+        } catch (Exception e) {
+            reinserter.log(segment, "<b>segment encoding (FEC) failed, do not reinsert</b>", 1, 2);
+            healingFailed(segment, dataBlocks, checkBlocks);
+            return false;
+        }
+
+        // finish
+        for (int i = 0; i < dataBlocks.length; i++) {
+            reinserter.log(segment, "dataBlock_" + i, dataBlocks[i]);
+            segment.getDataBlock(i).setData(dataBlocks[i]);
+        }
+        for (int i = 0; i < checkBlocks.length; i++) {
+            reinserter.log(segment, "checkBlock_" + i, checkBlocks[i]);
+            segment.getCheckBlock(i).setData(checkBlocks[i]);
+        }
+        reinserter.log(segment, "segment healing (FEC) successful, start with reinsertion", 0, 1);
+        reinserter.updateSegmentStatistic(segment, true);
+        return true;
+    }
+
+    // only a finished fetch owns data, a fetch cancelled by a minimal fetch never sets it
+    private static boolean isFetched(Block block) {
+        return !block.isFetchInProcess() && block.isFetchSuccessful();
+    }
+
+    // data of a block that could not be fetched from the block cache, in a pooled array
+    private byte[] findCached(Block block) {
+        if (!block.getUri().isCHK()) {
+            return null;
+        }
+        byte[] data = BlockCacheRepository.getInstance(reinserter.getPlugin()).findBlock(block.getUri());
+        if (data == null || data.length != CHKBlock.DATA_LENGTH) {
+            return null;
+        }
+        return BlockBuffers.copyOf(data);
+    }
+
+    // gives back the arrays that don't belong to fetched blocks
+    private void healingFailed(Segment segment, byte[][] dataBlocks, byte[][] checkBlocks) {
+        for (int i = 0; i < dataBlocks.length; i++) {
+            if (!isFetched(segment.getDataBlock(i))) {
+                BlockBuffers.release(dataBlocks[i]);
+            }
+        }
+        for (int i = 0; i < checkBlocks.length; i++) {
+            if (!isFetched(segment.getCheckBlock(i))) {
+                BlockBuffers.release(checkBlocks[i]);
+            }
+        }
+        reinserter.updateSegmentStatistic(segment, false);
+        segment.setHealingNotPossible(true);
+    }
+
+    // submits the insertions, the slot of the segment is given back when the last one is done
+    private void insert(final Segment segment) {
+        reinserter.log(segment, "starting reinsertion", 0, 1);
+        segment.initInsert();
+        insertStarted.put(segment, System.currentTimeMillis());
+
+        final AtomicInteger remaining = new AtomicInteger(1); // released after the submission
+        for (int i = 0; i < segment.size(); i++) {
+            reinserter.isActive(true);
+            Block block = segment.getBlock(i);
+            if (segment.size() > 1 && block.isFetchSuccessful()) {
+                segment.regFetchSuccess(true);
+                continue;
+            }
+            if (segment.size() > 1 && !block.isFetchInProcess()) {
+                segment.regFetchSuccess(false); // not counted if it was left out or cancelled by a minimal fetch
+            }
+
+            final SingleInsert singleInsert = new SingleInsert(reinserter, block);
+            remaining.incrementAndGet();
+            insertJobs.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        singleInsert.run();
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            finishInsert(segment);
+                        }
+                    }
+                }
+            });
+        }
+        if (remaining.decrementAndGet() == 0) {
+            finishInsert(segment);
+        }
+    }
+
+    private void finishInsert(Segment segment) {
+        insertStarted.remove(segment);
+        insertSlots.release();
+        segmentsInProgress.decrementAndGet();
+    }
+}
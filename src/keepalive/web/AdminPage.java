@@ -22,12 +22,20 @@ import freenet.keys.FreenetURI;
 
 import java.net.MalformedURLException;
 import java.net.URLDecoder;
+import java.util.List;
+import java.util.Map;
 
 import keepalive.Plugin;
+import keepalive.model.BlockBuffers;
+import keepalive.model.Site;
+import keepalive.repository.SiteRepository;
+import pluginbase.LogPage;
 import pluginbase.PageBase;
 
 public class AdminPage extends PageBase {
 
+    private static final int LOG_PAGE_LINES = 500;
+
     private Plugin plugin;
 
     private final String formPassword;
@@ -56,6 +64,15 @@ public class AdminPage extends PageBase {
                 // modify power
                 if (getParam("modify_power") != null) {
                     setIntPropByParam("power", 1);
+                    setIntPropByParam("power_min", 1);
+                    setIntProp("adaptive_power", getParam("adaptive_power") != null ? 1 : 0);
+                    saveProp();
+                    plugin.updateRequestSlots();
+                }
+
+                // modify number of sites reinserted in parallel
+                if (getParam("parallel_sites") != null) {
+                    setIntPropByParam("parallel_sites", 1);
                     saveProp();
                 }
 
@@ -71,6 +88,32 @@ public class AdminPage extends PageBase {
                     saveProp();
                 }
 
+                // modify error rate of the sequential availability test
+                if (getParam("splitfile_test_error") != null) {
+                    setIntPropByParam("splitfile_test_error", 0);
+                    saveProp();
+                }
+
+                // modify memory budget for block data
+                if (getParam("block_memory") != null) {
+                    setIntPropByParam("block_memory", 1);
+                    saveProp();
+                    plugin.updateBlockMemory();
+                }
+
+                // modify size of the block cache
+                if (getParam("block_cache") != null) {
+                    setIntPropByParam("block_cache", 0);
+                    saveProp();
+                    plugin.updateBlockCache();
+                }
+
+                // modify minimal fetch healing
+                if (getParam("modify_minimal_fetch_healing") != null) {
+                    setIntProp("minimal_fetch_healing", getParam("minimal_fetch_healing") != null ? 1 : 0);
+                    saveProp();
+                }
+
                 // modify timeslot to heal single url
                 if (getParam("single_url_timeslot") != null) {
                     setIntPropByParam("single_url_timeslot", 1);
@@ -83,6 +126,15 @@ public class AdminPage extends PageBase {
                     saveProp();
                 }
 
+                // modify log rotation
+                if (getParam("modify_log_rotation") != null) {
+                    setIntPropByParam("log_max_size", 0);
+                    setIntPropByParam("log_max_days", 0);
+                    setIntPropByParam("log_retention", 0);
+                    saveProp();
+                    plugin.updateLogRotation();
+                }
+
                 // clear logs
                 if (getParam("clear_logs") != null) {
                     plugin.clearAllLogs();
@@ -90,7 +142,7 @@ public class AdminPage extends PageBase {
 
                 // clear history
                 if (getParam("clear_history") != null) {
-                    removeProp("history_" + getParam("clear_history"));
+                    SiteRepository.getInstance(plugin).deleteHistory(getIntParam("clear_history"));
                 }
 
                 // add uris
@@ -105,12 +157,12 @@ public class AdminPage extends PageBase {
             }
 
             // boxes
-            int[] ids = plugin.getIds();
-            unsupportedKeysBox(ids);
-            sitesBox(ids);
+            List<Site> sites = SiteRepository.getInstance(plugin).findAll();
+            unsupportedKeysBox(sites);
+            sitesBox(sites);
             logBox();
             configurationBox();
-            historyBox(ids);
+            historyBox(sites);
 
             // info box
             addBox("Information",
@@ -121,15 +173,18 @@ public class AdminPage extends PageBase {
         }
     }
 
-    private void historyBox(int[] ids) throws Exception {
+    private void historyBox(List<Site> sites) throws Exception {
+        Map<Integer, String> histories = SiteRepository.getInstance(plugin).findAllHistories();
         StringBuilder html = new StringBuilder("<table>");
-        for (int id : ids) {
+        for (Site site : sites) {
+            int id = site.getId();
             html.append("<tr><td>")
-                    .append(getShortUri(id))
+                    .append(getShortUri(site.getUri()))
                     .append("</td><td>");
 
-            if (getProp("history_" + id) != null) {
-                html.append(getProp("history_" + id)
+            String history = histories.get(id);
+            if (history != null) {
+                html.append(history
                         .replaceAll("-", "=")
                         .replaceAll(",", "%, "))
                         .append("%");
@@ -147,32 +202,75 @@ public class AdminPage extends PageBase {
 
     private void configurationBox() throws Exception {
         StringBuilder html = new StringBuilder(html("properties", formPassword));
+        // two-digit placeholders first, "#1" is a prefix of them
+        html = new StringBuilder(html.toString().replaceAll("#10", getProp("power_min")));
+        html = new StringBuilder(html.toString().replaceAll("#11",
+                getIntProp("adaptive_power") == 1 ? "checked" : ""));
+        html = new StringBuilder(html.toString().replaceAll("#12",
+                plugin.getRequestSlots().getLimit() + " (" + plugin.getRequestSlots().getInUse() + " in use)"));
+        html = new StringBuilder(html.toString().replaceAll("#13", getProp("splitfile_test_error")));
+        html = new StringBuilder(html.toString().replaceAll("#14",
+                getIntProp("minimal_fetch_healing") == 1 ? "checked" : ""));
+        html = new StringBuilder(html.toString().replaceAll("#15", getProp("block_memory")));
+        html = new StringBuilder(html.toString().replaceAll("#16",
+                BlockBuffers.getBytesInUse() / 1024 / 1024 + " MB in memory, " +
+                BlockBuffers.getBytesSpilled() / 1024 / 1024 + " MB spilled"));
+        html = new StringBuilder(html.toString().replaceAll("#17", getProp("block_cache")));
         html = new StringBuilder(html.toString().replaceAll("#1", getProp("power")));
         html = new StringBuilder(html.toString().replaceAll("#2", getProp("loglevel")));
         html = new StringBuilder(html.toString().replaceAll("#3", getProp("splitfile_tolerance")));
         html = new StringBuilder(html.toString().replaceAll("#4", getProp("splitfile_test_size")));
         html = new StringBuilder(html.toString().replaceAll("#5", getProp("single_url_timeslot")));
+        html = new StringBuilder(html.toString().replaceAll("#6", getProp("parallel_sites")));
+        html = new StringBuilder(html.toString().replaceAll("#7", getProp("log_max_size")));
+        html = new StringBuilder(html.toString().replaceAll("#8", getProp("log_max_days")));
+        html = new StringBuilder(html.toString().replaceAll("#9", getProp("log_retention")));
         addBox("Configuration", html.toString(), "page-kp-config");
     }
 
     private void logBox() throws Exception {
         if (getParam("master_log") != null || getParam("log") != null) {
-            String log;
+            long from = -1; // last page
+            if (getParam("from") != null) {
+                try {
+                    from = Long.parseLong(getParam("from"));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            LogPage page;
+            String link;
             if (getParam("master_log") != null) {
-                log = plugin.getLog();
+                page = plugin.getLogPage(from, LOG_PAGE_LINES);
+                link = "?master_log=1";
             } else {
-                log = plugin.getLog(plugin.getLogFilename(getIntParam("log")));
+                page = plugin.getLogPage(plugin.getLogFilename(getIntParam("log")), from, LOG_PAGE_LINES);
+                link = "?log=" + getIntParam("log");
             }
+            link += "&formPassword=" + formPassword + "&from=";
+
+            StringBuilder html = new StringBuilder();
+            if (page != null) {
+                long first = page.getFirstLine();
+                long last = first + page.getLines().size();
+                html.append("lines ").append(page.getLineCount() > 0 ? first + 1 : 0)
+                        .append(" - ").append(last).append(" of ").append(page.getLineCount());
+                if (first > 0) {
+                    html.append(" &nbsp; <a href='").append(link).append(0).append("'>first</a>")
+                            .append(" &nbsp; <a href='").append(link).append(Math.max(0, first - LOG_PAGE_LINES))
+                            .append("'>previous</a>");
+                }
+                if (last < page.getLineCount()) {
+                    html.append(" &nbsp; <a href='").append(link).append(last).append("'>next</a>")
+                            .append(" &nbsp; <a href='").append(link).append(-1).append("'>last</a>");
+                }
 
-            if (log == null) {
-                log = "";
+                html.append("<br><small>");
+                for (String line : page.getLines()) {
+                    html.append(line.replace("  ", "&nbsp; &nbsp; ")).append("<br>");
+                }
+                html.append("</small>");
             }
 
-            StringBuilder html = new StringBuilder(
-                    ("<small>" + log + "</small>")
-                            .replaceAll("\n", "<br>")
-                            .replaceAll(" {2}", "&nbsp; &nbsp; "));
-
             if (getParam("master_log") != null) {
                 addBox("Master log", html.toString(), null);
             } else {
@@ -181,7 +279,7 @@ public class AdminPage extends PageBase {
         }
     }
 
-    private void sitesBox(int[] ids) throws Exception {
+    private void sitesBox(List<Site> sites) throws Exception {
         StringBuilder html = new StringBuilder(html("add_key", formPassword))
                 .append("<br><table><tr style=\"text-align:center;\">")
                 .append("<td>URI</td><td>total<br>blocks</td>")
@@ -190,18 +288,21 @@ public class AdminPage extends PageBase {
                 .append("<td colspan='4'>Actions</td>")
                 .append("</tr>");
 
-        for (int id : ids) {
-            String uri = getProp("uri_" + id);
-            int success = plugin.getSuccessValues(id)[0];
-            int failure = plugin.getSuccessValues(id)[1];
+        Map<Integer, int[]> allSuccessValues = plugin.getSuccessValues(sites);
+        for (Site site : sites) {
+            int id = site.getId();
+            String uri = site.getUri();
+            int[] successValues = allSuccessValues.get(id);
+            int success = successValues[0];
+            int failure = successValues[1];
 
             int persistence = 0;
             if (success > 0) {
                 persistence = (int) ((double) success / (success + failure) * 100);
             }
 
-            int availableSegments = plugin.getSuccessValues(id)[2];
-            int finishedSegmentsCount = getIntProp("segment_" + id) + 1;
+            int availableSegments = successValues[2];
+            int finishedSegmentsCount = site.getSegment() + 1;
 
             int segmentsAvailability = 0;
             if (finishedSegmentsCount > 0) {
@@ -211,9 +312,9 @@ public class AdminPage extends PageBase {
             html.append("<tr>" + "<td><a href='/")
                     .append(uri)
                     .append("'>")
-                    .append(getShortUri(id))
+                    .append(getShortUri(uri))
                     .append("</a></td><td align=\"center\">")
-                    .append(getProp("blocks_" + id))
+                    .append(site.getBlocksText())
                     .append("</td><td align=\"center\">")
                     .append(success)
                     .append("</td><td align=\"center\">")
@@ -232,7 +333,7 @@ public class AdminPage extends PageBase {
                     .append(formPassword)
                     .append("'>log</a></td>");
 
-            if (id == getIntProp("active")) {
+            if (plugin.isReinserterRunning(id)) {
                 html.append("<td><a href='?stop=")
                         .append(id)
                         .append("&formPassword=")
@@ -253,14 +354,14 @@ public class AdminPage extends PageBase {
         addBox("Add or remove a key", html.toString(), "page-kp-keys");
     }
 
-    private void unsupportedKeysBox(int[] ids) throws Exception {
+    private void unsupportedKeysBox(List<Site> sites) throws Exception {
         StringBuilder zeroBlockSites = new StringBuilder();
-        for (int id : ids) {
-            if (getProp("blocks_" + id).equals("0")) {
+        for (Site site : sites) {
+            if (site.getBlocks() == 0) {
                 if (zeroBlockSites.length() > 0) {
                     zeroBlockSites.append("<br>");
                 }
-                zeroBlockSites.append(getProp("uri_" + id));
+                zeroBlockSites.append(site.getUri());
             }
         }
 
@@ -289,20 +390,7 @@ public class AdminPage extends PageBase {
 
                 // add if not already on the list
                 if (!isDuplicate(uri)) {
-                    int[] ids = plugin.getIds();
-
-                    int id;
-                    if (ids.length == 0) {
-                        id = 0;
-                    } else {
-                        id = ids[ids.length - 1] + 1;
-                    }
-
-                    setProp("ids", getProp("ids") + id + ",");
-                    setProp("uri_" + id, uri);
-                    setProp("blocks_" + id, "?");
-                    setProp("success_" + id, "");
-                    setIntProp("segment_" + id, -1);
+                    SiteRepository.getInstance(plugin).save(uri);
                 }
             } catch (MalformedURLException e) {
                 addBox("URI not valid!", "You have typed:<br><br>" + uriOrig, null);
@@ -318,7 +406,7 @@ public class AdminPage extends PageBase {
     protected synchronized void updateUskEdition(int siteId) {
         try {
 
-            String siteUri = plugin.getProp("uri_" + siteId);
+            String siteUri = SiteRepository.getInstance(plugin).findOne(siteId).getUri();
             String id = "updateUskEdition" + System.currentTimeMillis();
             fcp.sendClientGet(id, siteUri);
 
@@ -327,7 +415,7 @@ public class AdminPage extends PageBase {
             }
 
             if (getRedirectURI() != null) {
-                plugin.setProp("uri_" + siteId, getRedirectURI());
+                SiteRepository.getInstance(plugin).updateUri(siteId, getRedirectURI());
                 log("RedirectURI: " + getRedirectURI(), 1);
             }
 
@@ -337,9 +425,13 @@ public class AdminPage extends PageBase {
     }
 
     private String getShortUri(int siteId) {
+        Site site = SiteRepository.getInstance(plugin).findOne(siteId);
+        return site != null ? getShortUri(site.getUri()) : null;
+    }
+
+    private String getShortUri(String uri) {
         try {
 
-            String uri = getProp("uri_" + siteId);
             if (uri.length() > 80) {
                 return uri.substring(0, 20) + "...." + uri.substring(uri.length() - 50);
             } else {
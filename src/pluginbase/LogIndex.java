@@ -0,0 +1,147 @@
+/*
+ * Plugin Base Package
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package pluginbase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Offsets of every 64th line of a log file. The index is extended by the bytes appended since the last
+ * refresh and rebuilt when the file was cleared, so a page of the log is read without scanning the file.
+ */
+class LogIndex {
+
+	private static final int STEP = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int HEAD_SIZE = 64;
+
+	private final File file;
+	private long[] offsets = new long[256]; // offsets[i] is the position of line i * STEP
+	private int nOffsets;
+	private long nLines; // complete lines
+	private long nIndexedLength; // end of the last complete line
+	private byte[] head = new byte[0]; // first bytes of the file, to notice that it was cleared and refilled
+
+	LogIndex(File file) {
+		this.file = file;
+		reset();
+	}
+
+	synchronized void refresh() throws IOException {
+		try (FileInputStream stream = new FileInputStream(file);
+			 FileChannel channel = stream.getChannel()) {
+
+			long nLength = channel.size();
+			if (nLength < nIndexedLength || !Arrays.equals(head, readHead(channel, head.length))) {
+				reset();
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long nPosition = nIndexedLength;
+			while (nPosition < nLength) {
+				buffer.clear();
+				int nRead = channel.read(buffer, nPosition);
+				if (nRead <= 0) {
+					break;
+				}
+				for (int i = 0; i < nRead; i++) {
+					if (buffer.get(i) == '\n') {
+						nLines++;
+						nIndexedLength = nPosition + i + 1;
+						if (nLines % STEP == 0) {
+							addOffset(nIndexedLength);
+						}
+					}
+				}
+				nPosition += nRead;
+			}
+			if (head.length < HEAD_SIZE) {
+				head = readHead(channel, (int) Math.min(HEAD_SIZE, nIndexedLength));
+			}
+		}
+	}
+
+	synchronized long getLineCount() {
+		return nLines;
+	}
+
+	/**
+	 * @param nFromLine first line, a negative value for the last page
+	 */
+	synchronized LogPage read(long nFromLine, int nMaxLines) throws IOException {
+		if (nFromLine < 0) {
+			nFromLine = nLines - nMaxLines;
+		}
+		nFromLine = Math.max(0, Math.min(nFromLine, nLines));
+		int nCount = (int) Math.min(nMaxLines, nLines - nFromLine);
+
+		ArrayList<String> lines = new ArrayList<>(nCount);
+		if (nCount > 0) {
+			try (FileInputStream stream = new FileInputStream(file);
+				 FileChannel channel = stream.getChannel()) {
+				channel.position(offsets[(int) (nFromLine / STEP)]);
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(Channels.newInputStream(channel), ISO_8859_1), BUFFER_SIZE);
+
+				for (long i = nFromLine % STEP; i > 0; i--) {
+					reader.readLine();
+				}
+				String line;
+				while (lines.size() < nCount && (line = reader.readLine()) != null) {
+					lines.add(line);
+				}
+			}
+		}
+		return new LogPage(lines, nFromLine, nLines);
+	}
+
+	private void reset() {
+		nOffsets = 0;
+		addOffset(0);
+		nLines = 0;
+		nIndexedLength = 0;
+		head = new byte[0];
+	}
+
+	private void addOffset(long nOffset) {
+		if (nOffsets == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[nOffsets++] = nOffset;
+	}
+
+	private static byte[] readHead(FileChannel channel, int nSize) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(nSize);
+		int nRead = 0;
+		while (buffer.hasRemaining() && nRead >= 0) {
+			nRead = channel.read(buffer, buffer.position());
+		}
+		return buffer.position() == nSize ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Plugin Base Package
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package pluginbase;
+
+import java.util.List;
+
+/**
+ * A window of consecutive lines of a log file.
+ */
+public class LogPage {
+
+	private final List<String> lines;
+	private final long nFirstLine;
+	private final long nLineCount;
+
+	LogPage(List<String> lines, long nFirstLine, long nLineCount) {
+		this.lines = lines;
+		this.nFirstLine = nFirstLine;
+		this.nLineCount = nLineCount;
+	}
+
+	public List<String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return number of the first line of the page, starting with 0
+	 */
+	public long getFirstLine() {
+		return nFirstLine;
+	}
+
+	/**
+	 * @return number of lines of the whole log
+	 */
+	public long getLineCount() {
+		return nLineCount;
+	}
+}
@@ -0,0 +1,478 @@
+/*
+ * Plugin Base Package
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package pluginbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Writes the log files of the plugin on its own thread. Loggers only put their line into a bounded queue and
+ * never wait for the disk; lines are dropped (and counted) while the queue is full. Clear commands go through
+ * the same queue, so they keep their order with the lines.
+ * <p>
+ * A log file that gets too big or too old is renamed to "name.yyyyMMdd-HHmmss" and reopened empty. The renamed
+ * file is gzipped on another thread, which also removes the oldest archives beyond the retention.
+ */
+class LogWriter extends Thread {
+
+	private static final int QUEUE_SIZE = 10_000;
+	private static final String MASTER_LOG = "log.txt";
+
+	private final String strPath;
+	private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final AtomicLong nDropped = new AtomicLong();
+	private final TreeMap<String, RandomAccessFile> mLogFiles = new TreeMap<>(); // used by the writer thread only
+	private final HashMap<String, Long> mOpenedAt = new HashMap<>(); // used by the writer thread only
+	private final ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "PluginBase Log Compressor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private volatile SimpleDateFormat dateFormat;
+	private volatile boolean bClosed;
+	private volatile long nMaxSize; // bytes, 0 for no limit
+	private volatile long nMaxAge; // milliseconds, 0 for no limit
+	private volatile int nRetention = Integer.MAX_VALUE; // number of archives kept per log
+
+	// timestamp of the last second that was formatted
+	private SimpleDateFormat lastDateFormat;
+	private long nLastSecond = -1;
+	private String strLastTimestamp;
+
+	LogWriter(String strPath) {
+		this.strPath = strPath;
+		setTimeZone(TimeZone.getDefault());
+		setName("PluginBase Log Writer " + strPath);
+		setDaemon(true);
+	}
+
+	void setTimeZone(TimeZone timeZone) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd_HH.mm_ss");
+		format.setTimeZone(timeZone);
+		dateFormat = format;
+	}
+
+	/**
+	 * @param nMaxSize   size in bytes that starts a new log file, 0 for no limit
+	 * @param nMaxAge    age in milliseconds that starts a new log file, 0 for no limit
+	 * @param nRetention number of rotated files kept per log
+	 */
+	void setRotation(long nMaxSize, long nMaxAge, int nRetention) {
+		this.nMaxSize = nMaxSize;
+		this.nMaxAge = nMaxAge;
+		this.nRetention = nRetention;
+	}
+
+	void append(String strFilename, String strText) {
+		if (bClosed || !queue.offer(new Entry(Entry.LINE, strFilename, strText, System.currentTimeMillis()))) {
+			nDropped.incrementAndGet();
+		}
+	}
+
+	void clear(String strFilename) {
+		command(Entry.CLEAR, strFilename);
+	}
+
+	void clearAll() {
+		command(Entry.CLEAR_ALL, null);
+	}
+
+	/**
+	 * Removes the log file and its archives.
+	 */
+	void delete(String strFilename) {
+		command(Entry.DELETE, strFilename);
+	}
+
+	/**
+	 * Waits until the lines logged so far are on disk.
+	 */
+	void flush() {
+		Entry entry = command(Entry.FLUSH, null);
+		if (entry != null) {
+			try {
+				entry.done.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending lines, closes the files and ends the thread.
+	 */
+	void close() {
+		Entry entry = command(Entry.CLOSE, null);
+		bClosed = true;
+		if (entry != null) {
+			try {
+				join(5_000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		compressor.shutdown();
+		try {
+			compressor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Entry command(int nType, String strFilename) {
+		if (bClosed) {
+			return null;
+		}
+		Entry entry = new Entry(nType, strFilename, null, 0);
+		try {
+			queue.put(entry); // commands are never dropped
+			return entry;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	@Override
+	public void run() {
+		ArrayList<Entry> entries = new ArrayList<>();
+		LinkedHashMap<String, ByteArrayOutputStream> mBuffers = new LinkedHashMap<>();
+		try {
+
+			while (true) {
+				entries.add(queue.take());
+				queue.drainTo(entries);
+
+				for (Entry entry : entries) {
+					switch (entry.nType) {
+						case Entry.LINE:
+							ByteArrayOutputStream buffer = mBuffers.get(entry.strFilename);
+							if (buffer == null) {
+								buffer = new ByteArrayOutputStream();
+								mBuffers.put(entry.strFilename, buffer);
+							}
+							byte[] line = (getTimestamp(entry.nTime) + "  " + entry.strText + "\n").getBytes(ISO_8859_1);
+							buffer.write(line, 0, line.length);
+							break;
+						case Entry.CLEAR:
+							write(mBuffers);
+							truncate(entry.strFilename);
+							break;
+						case Entry.CLEAR_ALL:
+							write(mBuffers);
+							for (String strFilename : mLogFiles.keySet()) {
+								truncate(strFilename);
+							}
+							break;
+						case Entry.DELETE:
+							write(mBuffers);
+							delete(entry.strFilename, mBuffers);
+							break;
+						case Entry.FLUSH:
+							write(mBuffers);
+							entry.done.countDown();
+							break;
+						case Entry.CLOSE:
+							write(mBuffers);
+							return;
+					}
+				}
+				entries.clear();
+
+				long nDroppedLines = nDropped.getAndSet(0);
+				if (nDroppedLines > 0) {
+					appendDirect(mBuffers, MASTER_LOG, nDroppedLines + " log lines dropped, the log writer couldn't keep up");
+				}
+				write(mBuffers);
+			}
+
+		} catch (InterruptedException e) {
+			write(mBuffers);
+		} finally {
+			bClosed = true;
+			for (RandomAccessFile file : mLogFiles.values()) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// nothing left to log to
+				}
+			}
+			mLogFiles.clear();
+			for (Entry entry : queue) {
+				if (entry.done != null) {
+					entry.done.countDown();
+				}
+			}
+		}
+	}
+
+	// one write per file and batch
+	private void write(Map<String, ByteArrayOutputStream> mBuffers) {
+		if (!mBuffers.containsKey(MASTER_LOG)) { // errors are reported there while iterating
+			mBuffers.put(MASTER_LOG, new ByteArrayOutputStream());
+		}
+		for (Map.Entry<String, ByteArrayOutputStream> buffer : mBuffers.entrySet()) {
+			if (buffer.getValue().size() == 0) {
+				continue;
+			}
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(buffer.getValue().toByteArray());
+				buffer.getValue().reset();
+				RandomAccessFile file = getFile(buffer.getKey());
+				if (isRotationDue(buffer.getKey(), file, bytes.remaining())) {
+					rotate(buffer.getKey(), mBuffers);
+					file = getFile(buffer.getKey());
+				}
+				while (bytes.hasRemaining()) {
+					file.getChannel().write(bytes);
+				}
+			} catch (IOException e) {
+				if (!buffer.getKey().equals(MASTER_LOG)) {
+					appendDirect(mBuffers, MASTER_LOG, "PluginBase.log(): " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void appendDirect(Map<String, ByteArrayOutputStream> mBuffers, String strFilename, String strText) {
+		ByteArrayOutputStream buffer = mBuffers.get(strFilename);
+		if (buffer == null) {
+			buffer = new ByteArrayOutputStream();
+			mBuffers.put(strFilename, buffer);
+		}
+		byte[] line = (getTimestamp(System.currentTimeMillis()) + "  " + strText + "\n").getBytes(ISO_8859_1);
+		buffer.write(line, 0, line.length);
+	}
+
+	private void truncate(String strFilename) {
+		try {
+
+			RandomAccessFile file = getFile(strFilename);
+			file.setLength(0);
+			file.getChannel().position(0);
+			mOpenedAt.put(strFilename, System.currentTimeMillis());
+
+		} catch (IOException e) {
+			append(MASTER_LOG, "PluginBase.clearLog(): " + e.getMessage());
+		}
+	}
+
+	private RandomAccessFile getFile(String strFilename) throws IOException {
+		RandomAccessFile file = mLogFiles.get(strFilename);
+		if (file == null) {
+			File logFile = new File(strPath + "/" + strFilename);
+			if (!mOpenedAt.containsKey(strFilename)) {
+				mOpenedAt.put(strFilename, logFile.exists()
+						? Files.readAttributes(logFile.toPath(), BasicFileAttributes.class).creationTime().toMillis()
+						: System.currentTimeMillis());
+			}
+			file = new RandomAccessFile(logFile, "rw");
+			file.getChannel().position(file.length());
+			mLogFiles.put(strFilename, file);
+		}
+		return file;
+	}
+
+	private boolean isRotationDue(String strFilename, RandomAccessFile file, int nBytes) throws IOException {
+		long nLength = file.length();
+		if (nLength == 0) {
+			return false;
+		}
+		long nAge = System.currentTimeMillis() - mOpenedAt.get(strFilename);
+		return (nMaxSize > 0 && nLength + nBytes > nMaxSize) || (nMaxAge > 0 && nAge > nMaxAge);
+	}
+
+	private void rotate(String strFilename, Map<String, ByteArrayOutputStream> mBuffers) throws IOException {
+		mLogFiles.remove(strFilename).close();
+		mOpenedAt.put(strFilename, System.currentTimeMillis());
+
+		File logFile = new File(strPath + "/" + strFilename);
+		String strSuffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		File rotatedFile = new File(logFile.getPath() + "." + strSuffix);
+		for (int i = 1; rotatedFile.exists() || new File(rotatedFile.getPath() + ".gz").exists(); i++) {
+			rotatedFile = new File(logFile.getPath() + "." + strSuffix + "-" + i);
+		}
+
+		if (!logFile.renameTo(rotatedFile)) {
+			// keep the size limit at least
+			appendDirect(mBuffers, MASTER_LOG, "PluginBase.rotateLog(): can't rename " + logFile + ", cleared it");
+			truncate(strFilename);
+			return;
+		}
+		compressor.execute(new Compression(logFile, rotatedFile));
+	}
+
+	private void delete(String strFilename, Map<String, ByteArrayOutputStream> mBuffers) {
+		try {
+			RandomAccessFile file = mLogFiles.remove(strFilename);
+			if (file != null) {
+				file.close();
+			}
+			mOpenedAt.remove(strFilename);
+
+			final File logFile = new File(strPath + "/" + strFilename);
+			if (logFile.exists() && !logFile.delete()) {
+				appendDirect(mBuffers, MASTER_LOG, "PluginBase.deleteLog(): can't delete " + logFile);
+			}
+			compressor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (File archive : getArchives(logFile)) {
+						if (!archive.delete()) {
+							append(MASTER_LOG, "PluginBase.deleteLog(): can't delete " + archive);
+						}
+					}
+				}
+			});
+
+		} catch (IOException e) {
+			appendDirect(mBuffers, MASTER_LOG, "PluginBase.deleteLog(): " + e.getMessage());
+		}
+	}
+
+	// rotated files of the log, oldest first
+	private static File[] getArchives(File logFile) {
+		final String strPrefix = logFile.getName() + ".";
+		File[] archives = logFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String strName) {
+				return strName.startsWith(strPrefix);
+			}
+		});
+		if (archives == null) {
+			return new File[0];
+		}
+		Arrays.sort(archives);
+		return archives;
+	}
+
+	private class Compression implements Runnable {
+
+		private final File logFile;
+		private final File rotatedFile;
+
+		Compression(File logFile, File rotatedFile) {
+			this.logFile = logFile;
+			this.rotatedFile = rotatedFile;
+		}
+
+		@Override
+		public void run() {
+			try {
+
+				if (nRetention > 0) {
+					File gzipFile = new File(rotatedFile.getPath() + ".gz");
+					try (FileInputStream in = new FileInputStream(rotatedFile);
+						 GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(gzipFile), 64 * 1024)) {
+						byte[] buffer = new byte[64 * 1024];
+						int nRead;
+						while ((nRead = in.read(buffer)) != -1) {
+							out.write(buffer, 0, nRead);
+						}
+					}
+				}
+				if (!rotatedFile.delete()) {
+					append(MASTER_LOG, "PluginBase.rotateLog(): can't delete " + rotatedFile);
+				}
+
+				// retention
+				ArrayList<File> gzipFiles = new ArrayList<>();
+				for (File archive : getArchives(logFile)) {
+					if (archive.getName().endsWith(".gz")) {
+						gzipFiles.add(archive);
+					}
+				}
+				for (int i = 0; i < gzipFiles.size() - nRetention; i++) {
+					if (!gzipFiles.get(i).delete()) {
+						append(MASTER_LOG, "PluginBase.rotateLog(): can't delete " + gzipFiles.get(i));
+					}
+				}
+
+			} catch (IOException e) {
+				append(MASTER_LOG, "PluginBase.rotateLog(): " + e.getMessage());
+			}
+		}
+	}
+
+	// the format has a resolution of one second, so it is formatted once per second
+	private String getTimestamp(long nTime) {
+		SimpleDateFormat format = dateFormat;
+		long nSecond = nTime / 1000;
+		if (nSecond != nLastSecond || format != lastDateFormat) {
+			strLastTimestamp = format.format(new Date(nTime));
+			nLastSecond = nSecond;
+			lastDateFormat = format;
+		}
+		return strLastTimestamp;
+	}
+
+	private static class Entry {
+
+		static final int LINE = 0;
+		static final int CLEAR = 1;
+		static final int CLEAR_ALL = 2;
+		static final int FLUSH = 3;
+		static final int CLOSE = 4;
+		static final int DELETE = 5;
+
+		final int nType;
+		final String strFilename;
+		final String strText;
+		final long nTime;
+		final CountDownLatch done; // null for lines
+
+		Entry(int nType, String strFilename, String strText, long nTime) {
+			this.nType = nType;
+			this.strFilename = strFilename;
+			this.strText = strText;
+			this.nTime = nTime;
+			this.done = nType == LINE ? null : new CountDownLatch(1);
+		}
+	}
+}
@@ -35,9 +35,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Properties;
 import java.util.TimeZone;
 import java.util.TreeMap;
@@ -59,9 +56,9 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 	private String strMenuTitle = null;
 	private String strMenuTooltip = null;
 	private String strVersion = "0.0";
-	private SimpleDateFormat dateFormat;
 	private TreeMap mPages = new TreeMap();
-	private TreeMap<String, RandomAccessFile> mLogFiles = new TreeMap<>();
+	private LogWriter logWriter;
+	private final TreeMap<String, LogIndex> mLogIndexes = new TreeMap<>();
 
 	public PluginBase(String strPath, String strTitle, String strPropFilename) {
 		try {
@@ -72,9 +69,8 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 
 			// prepare and clear log file
 			(new File(strPath)).mkdir();
-			initLog("log.txt");
-			dateFormat = new SimpleDateFormat("yyyy.MM.dd_HH.mm_ss");
-			dateFormat.setTimeZone(TimeZone.getDefault());
+			logWriter = new LogWriter(strPath);
+			logWriter.start();
 
 			// load properties
 			loadProp();
@@ -160,11 +156,9 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 			webInterface = null;
 			pagemaker.removeNavigationCategory(getCategory());
 			log("plugin base terminated");
-			for (RandomAccessFile file : mLogFiles.values()) {
-				file.close();
-			}
+			logWriter.close();
 
-		} catch (IOException e) {
+		} catch (Exception e) {
 			log("PluginBase.terminate(): " + e.getMessage(), 1);
 		}
 	}
@@ -261,27 +255,12 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 	// ******************************************
 	// methods to use in the derived page class:
 	// ******************************************
-	// log files
-	private synchronized void initLog(String strFilename) {
-		try {
-
-			if (!mLogFiles.containsKey(strFilename)) {
-				RandomAccessFile file = new RandomAccessFile(strPath + "/" + strFilename, "rw");
-				file.seek(file.length());
-				mLogFiles.put(strFilename, file);
-			}
-
-		} catch (IOException e) {
-			log("PluginBase.initLog(): " + e.getMessage());
-		}
-	}
-
-	public synchronized void log(String strFilename, String cText, int nLogLevel) {
+	// log files, written by the log writer thread
+	public void log(String strFilename, String cText, int nLogLevel) {
 		try {
 
 			if (nLogLevel <= getIntProp("loglevel")) {
-				initLog(strFilename);
-				mLogFiles.get(strFilename).writeBytes(dateFormat.format(new Date()) + "  " + cText + "\n");
+				logWriter.append(strFilename, cText);
 			}
 
 		} catch (Exception e) {
@@ -296,55 +275,50 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 		log(strFilename, strText, 0);
 	}
 
-	public synchronized String getLog(String filename) {
+	/**
+	 * @param nFromLine first line of the page, a negative value for the last page
+	 * @return the page or null if the log can't be read
+	 */
+	public LogPage getLogPage(String strFilename, long nFromLine, int nMaxLines) {
+		logWriter.flush();
 		try {
 
-			initLog(filename);
-			RandomAccessFile file = mLogFiles.get(filename);
-			int MAX_LOG_LENGTH = 2_000_000; // around 10k lines
-			StringBuilder buffer = new StringBuilder();
-			long fileLength = file.length();
-			if (fileLength > MAX_LOG_LENGTH) {
-				long skip = fileLength - MAX_LOG_LENGTH;
-				file.seek(skip);
-				file.readLine();
-				buffer.append("log contains ").append(skip).append(" preceding bytes (~").append(skip / 200).append(" lines)").append("\n");
-			} else {
-				file.seek(0);
-			}
-			String line;
-			while ((line = file.readLine()) != null) {
-				buffer.append(line).append("\n");
+			LogIndex index;
+			synchronized (mLogIndexes) {
+				index = mLogIndexes.get(strFilename);
+				if (index == null) {
+					index = new LogIndex(new File(strPath + "/" + strFilename));
+					mLogIndexes.put(strFilename, index);
+				}
 			}
-			return buffer.toString();
+			index.refresh();
+			return index.read(nFromLine, nMaxLines);
 
 		} catch (IOException e) {
-			log("PluginBase.getLog(): " + e.getMessage());
+			log("PluginBase.getLogPage(): " + e.getMessage());
 			return null;
 		}
 	}
 
 	public void clearLog(String strFilename) {
-		try {
-
-			initLog(strFilename);
-			mLogFiles.get(strFilename).setLength(0);
-
-		} catch (IOException e) {
-			log("PluginBase.clearLog(): " + e.getMessage());
-		}
+		logWriter.clear(strFilename);
 	}
 
 	public void clearAllLogs() {
-		try {
+		logWriter.clearAll();
+	}
 
-			for (RandomAccessFile file : mLogFiles.values()) {
-				file.setLength(0);
-			}
+	public void deleteLog(String strFilename) {
+		logWriter.delete(strFilename);
+	}
 
-		} catch (IOException e) {
-			log("PluginBase.clearAllLogs(): " + e.getMessage());
-		}
+	/**
+	 * @param nMaxSize   size in MB that starts a new log file, 0 for no limit
+	 * @param nMaxDays   age in days that starts a new log file, 0 for no limit
+	 * @param nRetention number of gzipped old files kept per log
+	 */
+	protected void setLogRotation(int nMaxSize, int nMaxDays, int nRetention) {
+		logWriter.setRotation(nMaxSize * 1024L * 1024L, nMaxDays * 24L * 60L * 60L * 1000L, nRetention);
 	}
 
 	public void setLogLevel(int nLevel) throws Exception {
@@ -370,8 +344,8 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 		clearLog("log.txt");
 	}
 
-	public String getLog() {
-		return getLog("log.txt");
+	public LogPage getLogPage(long nFromLine, int nMaxLines) {
+		return getLogPage("log.txt", nFromLine, nMaxLines);
 	}
 
 	// methods to set the version of the plugin
@@ -502,7 +476,6 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 	}
 
 	protected void setTimezoneUTC() {
-		dateFormat = new SimpleDateFormat("yyyy.MM.dd_HH.mm_ss");
-		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		logWriter.setTimeZone(TimeZone.getTimeZone("UTC"));
 	}
 }